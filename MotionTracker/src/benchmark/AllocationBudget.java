@@ -0,0 +1,424 @@
+package benchmark;
+
+import image.Image;
+import imageutils.Histogram;
+import imageutils.ImageEffect;
+import imageutils.ImageEffect.MorphologyOperation;
+import imageutils.ImageEffect.ShapeRectangle;
+import imageutils.RunLengthMask;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tracking.TrackAssociator;
+
+/**
+ * <p>
+ * Checks that detection kernels, labeling and track association stay within
+ * declared number of bytes allocated per frame. Every kernel is run on
+ * synthetic frames until compiled code settles, then bytes allocated by all
+ * threads while it processes further frames are counted with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])}.
+ * </p>
+ * <p>
+ * Budget of kernel is modelled per pixel of frame, which covers the image it
+ * returns, per column and per row, which cover buffers as long as a row or
+ * column, per run of mask it works on and constant per frame, so it holds at
+ * any resolution and density. Kernel may allocate HEADROOM more than its
+ * model. Exits with status 1 if any kernel goes over its budget and with 2 if
+ * JVM cannot count allocated bytes.
+ * </p>
+ * <p>
+ * Usage: AllocationBudget [width height]...
+ * </p>
+ * <p>
+ * Without arguments, resolutions from RESOLUTIONS are checked, which include
+ * frames much wider than high and the other way round.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class AllocationBudget
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int WARMUP_FRAMES = 20;
+	private static final int MEASURED_FRAMES = 10;
+	private static final int DISTINCT_FRAMES = 4;
+	private static final int TRESHOLD = 6;
+	private static final int SMALL_OBJECT = 23;
+	private static final double DENSITY = 10;
+	/* Share of the model allowed on top of it, for JIT and GC noise */
+	private static final double HEADROOM = 0.25;
+	private static final int[][] RESOLUTIONS = { { 1024, 1024 },
+			{ 640, 480 }, { 320, 240 }, { 2048, 256 }, { 256, 2048 } };
+
+	private static com.sun.management.ThreadMXBean threads;
+	/* Results are kept here, so that kernels cannot be optimized away */
+	private static volatile Object sink;
+
+	/**
+	 * <p>
+	 * Operation measured frame after frame, with its allocation budget.
+	 * </p>
+	 */
+	private static abstract class Kernel
+	{
+		private final String name;
+		private final double bytesPerPixel;
+		private final long bytesPerColumn;
+		private final long bytesPerRow;
+		private final long bytesPerRun;
+		private final long bytesPerFrame;
+
+		private Kernel(String name, double bytesPerPixel, long bytesPerColumn,
+				long bytesPerRow, long bytesPerRun, long bytesPerFrame)
+		{
+			this.name = name;
+			this.bytesPerPixel = bytesPerPixel;
+			this.bytesPerColumn = bytesPerColumn;
+			this.bytesPerRow = bytesPerRow;
+			this.bytesPerRun = bytesPerRun;
+			this.bytesPerFrame = bytesPerFrame;
+		}
+
+		abstract Object process(int frame);
+
+		/**
+		 * <p>
+		 * Returns number of runs of mask given frame is processed from.
+		 * </p>
+		 */
+		int countRuns(int frame)
+		{
+			return 0;
+		}
+	}
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Runs all checks.
+	 * </p>
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length % 2 != 0)
+			throw new IllegalArgumentException(
+					"Resolutions must be given as width and height");
+		int[][] resolutions = RESOLUTIONS;
+		if (args.length > 0)
+		{
+			resolutions = new int[args.length / 2][];
+			for (int i = 0; i < resolutions.length; i++)
+				resolutions[i] = new int[] { Integer.parseInt(args[2 * i]),
+						Integer.parseInt(args[2 * i + 1]) };
+		}
+
+		if (!(ManagementFactory.getThreadMXBean()
+				instanceof com.sun.management.ThreadMXBean))
+		{
+			System.err.println("Allocated bytes cannot be counted on this JVM");
+			System.exit(2);
+		}
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported())
+		{
+			System.err.println("Allocated bytes cannot be counted on this JVM");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		boolean isOverBudget = false;
+		for (int[] resolution : resolutions)
+		{
+			System.out.println(resolution[0] + "x" + resolution[1] + ":");
+			isOverBudget |= !check(resolution[0], resolution[1]);
+		}
+
+		System.exit(isOverBudget ? 1 : 0);
+	}
+
+	/**
+	 * <p>
+	 * Checks all kernels on frames of given size and returns whether they all
+	 * stayed within their budgets.
+	 * </p>
+	 */
+	private static boolean check(int width, int height)
+	{
+		long pixels = (long) width * height;
+		boolean isOverBudget = false;
+		for (Kernel kernel : createKernels(width, height))
+		{
+			for (int i = 0; i < WARMUP_FRAMES; i++)
+				sink = kernel.process(i);
+
+			long runs = 0;
+			int end = WARMUP_FRAMES + MEASURED_FRAMES;
+			for (int i = WARMUP_FRAMES; i < end; i++)
+				runs += kernel.countRuns(i);
+
+			Map<Long, Long> before = getAllocatedBytes();
+			for (int i = WARMUP_FRAMES; i < end; i++)
+				sink = kernel.process(i);
+			Map<Long, Long> after = getAllocatedBytes();
+
+			long allocated = 0;
+			for (Map.Entry<Long, Long> thread : after.entrySet())
+			{
+				Long start = before.get(thread.getKey());
+				allocated += thread.getValue() - (start != null ? start : 0);
+			}
+			long perFrame = allocated / MEASURED_FRAMES;
+			double model = kernel.bytesPerPixel * pixels
+					+ kernel.bytesPerColumn * width + kernel.bytesPerRow
+					* height + kernel.bytesPerRun * runs / MEASURED_FRAMES
+					+ kernel.bytesPerFrame;
+			long budget = (long) ((1 + HEADROOM) * model);
+			boolean isOver = perFrame > budget;
+			isOverBudget |= isOver;
+
+			System.out.println(String.format(
+					"%-24s %12d B/frame (%5.2f B/pixel), budget %12d %s",
+					kernel.name, perFrame, (double) perFrame / pixels, budget,
+					isOver ? "OVER BUDGET" : "ok"));
+		}
+
+		return !isOverBudget;
+	}
+
+	private static List<Kernel> createKernels(int width, int height)
+	{
+		SyntheticSequence sequence = new SyntheticSequence(width, height,
+				WARMUP_FRAMES + MEASURED_FRAMES + 1, DENSITY, 1);
+		final Image[] frames = new Image[DISTINCT_FRAMES];
+		final Image[] grays = new Image[DISTINCT_FRAMES];
+		final Image[] differences = new Image[DISTINCT_FRAMES];
+		final Image[] binaries = new Image[DISTINCT_FRAMES];
+		final Image[] opened = new Image[DISTINCT_FRAMES];
+		final RunLengthMask[] masks = new RunLengthMask[DISTINCT_FRAMES];
+		final RunLengthMask[] openedMasks = new RunLengthMask[DISTINCT_FRAMES];
+		final int[] tresholds = new int[DISTINCT_FRAMES];
+		final Image background = ImageEffect.getGrayscale(new Image(sequence
+				.renderFrame(0)));
+
+		for (int i = 0; i < DISTINCT_FRAMES; i++)
+		{
+			frames[i] = new Image(sequence.renderFrame(i + 1));
+			grays[i] = ImageEffect.getGrayscale(frames[i]);
+			Histogram histogram = new Histogram();
+			differences[i] = ImageEffect.subtractImages(background, grays[i],
+					histogram);
+			tresholds[i] = Math.max(TRESHOLD, histogram.getTriangleTreshold());
+			binaries[i] = ImageEffect.binarizeImage(differences[i],
+					tresholds[i], 0, 255);
+			opened[i] = openAndClose(binaries[i]);
+			masks[i] = ImageEffect.binarizeToRunLengthMask(differences[i],
+					tresholds[i]);
+			openedMasks[i] = masks[i].dilatation(5).erosion(7).dilatation(3);
+		}
+
+		/* Association gets its rectangles as detection would hand them over */
+		final List<List<ShapeRectangle>> rectangles = new ArrayList<>();
+		for (int f = 1; f < sequence.getFrameCount(); f++)
+			rectangles.add(new ArrayList<>(sequence.getGroundTruth(f)
+					.values()));
+		final TrackAssociator associator = new TrackAssociator(1,
+				SMALL_OBJECT, 9);
+
+		/*
+		 * Budgets follow what kernels are meant to allocate. Kernels returning
+		 * image need 4 B per pixel for it and nothing else per pixel, rows are
+		 * read and written through buffers as long as a row. Every row read or
+		 * written costs about 32 B of temporary arrays made by BufferedImage,
+		 * and every image some 8 KB of objects around its pixels.
+		 */
+		List<Kernel> kernels = new ArrayList<>();
+		/* One row buffer, one read and one write per row */
+		kernels.add(new Kernel("grayscale", 4, 4, 64, 0, 8192)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return ImageEffect.getGrayscale(frames[frame
+						% DISTINCT_FRAMES]);
+			}
+		});
+		/*
+		 * Column histograms of 256 fine and 16 coarse bins (1088 B per column)
+		 * and window of 2 * radius + 2 rows with output row (24 + 4 B per
+		 * column at radius 2), one read and one write per row
+		 */
+		kernels.add(new Kernel("median filter", 4, 1120, 64, 0, 8192)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return ImageEffect.medianFilter(
+						grays[frame % DISTINCT_FRAMES], 2);
+			}
+		});
+		/*
+		 * Every tile of 64 rows has two row buffers (8 B per column, so 0.125
+		 * B per pixel) and 1 KB of bins, two reads and one write per row
+		 */
+		kernels.add(new Kernel("differences", 4.125, 0, 112, 0, 8192)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return ImageEffect.subtractImages(background,
+						grays[frame % DISTINCT_FRAMES], new Histogram());
+			}
+		});
+		/* Two row buffers, two reads and one write per row */
+		kernels.add(new Kernel("background update", 4, 8, 96, 0, 8192)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return ImageEffect.moveTowards(background,
+						frames[frame % DISTINCT_FRAMES], 1);
+			}
+		});
+		/* One row buffer, one read and one write per row */
+		kernels.add(new Kernel("binarization", 4, 4, 64, 0, 8192)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return ImageEffect.binarizeImage(differences[frame
+						% DISTINCT_FRAMES], tresholds[frame % DISTINCT_FRAMES],
+						0, 255);
+			}
+		});
+		/*
+		 * Ring buffers of mask size rows and output row of bytes for every
+		 * operation (18 B per column), pixel, color and byte rows (9 B), one
+		 * read and one write per row
+		 */
+		kernels.add(new Kernel("morphology", 4, 27, 64, 0, 8192)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return openAndClose(binaries[frame % DISTINCT_FRAMES]);
+			}
+		});
+		/*
+		 * Labels of pixels (4 B per pixel) with background frame around them
+		 * (8 B per column and row), one row buffer and one read per row, and
+		 * contours of objects
+		 */
+		kernels.add(new Kernel("contour labeling", 4, 12, 40, 0, 32768)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return ImageEffect.getObjectContours(opened[frame
+						% DISTINCT_FRAMES], 255);
+			}
+		});
+		/*
+		 * Nothing per pixel: one row buffer, one read and row start per row,
+		 * and 8 B per run, copied as runs grow and once more when trimmed
+		 */
+		kernels.add(new Kernel("run-length binarization", 0, 4, 36, 32, 1024)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return ImageEffect.binarizeToRunLengthMask(differences[frame
+						% DISTINCT_FRAMES], tresholds[frame % DISTINCT_FRAMES]);
+			}
+
+			@Override
+			int countRuns(int frame)
+			{
+				return masks[frame % DISTINCT_FRAMES].getRunCount();
+			}
+		});
+		/*
+		 * Nothing per pixel: every output row of the three operations merges
+		 * as many rows as mask is high, 15 merges in all. Each merge makes two
+		 * arrays (16 B per row each) and copies runs met so far into both (16
+		 * B per run each).
+		 */
+		kernels.add(new Kernel("run-length morphology", 0, 0, 480, 480, 1024)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return masks[frame % DISTINCT_FRAMES].dilatation(5).erosion(7)
+						.dilatation(3);
+			}
+
+			@Override
+			int countRuns(int frame)
+			{
+				return masks[frame % DISTINCT_FRAMES].getRunCount();
+			}
+		});
+		/*
+		 * Parent and component of every run (8 B per run). Objects kept after
+		 * opening span dozens of runs, so their statistics and rectangles
+		 * (some 200 B each) stay below further 8 B per run.
+		 */
+		kernels.add(new Kernel("run-length labeling", 0, 0, 0, 16, 1024)
+		{
+			@Override
+			Object process(int frame)
+			{
+				return openedMasks[frame % DISTINCT_FRAMES].getObjectAreas();
+			}
+
+			@Override
+			int countRuns(int frame)
+			{
+				return openedMasks[frame % DISTINCT_FRAMES].getRunCount();
+			}
+		});
+		/* Tracks are updated in place, only matching needs scratch space */
+		kernels.add(new Kernel("track association", 0, 0, 0, 0, 4096)
+		{
+			@Override
+			Object process(int frame)
+			{
+				associator.advance(rectangles.get(frame));
+				return associator;
+			}
+		});
+
+		return kernels;
+	}
+
+	private static Image openAndClose(Image img)
+	{
+		return ImageEffect.morphology(img, 255, 0,
+				MorphologyOperation.dilatation(5),
+				MorphologyOperation.erosion(7),
+				MorphologyOperation.dilatation(3));
+	}
+
+	private static Map<Long, Long> getAllocatedBytes()
+	{
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = threads.getThreadAllocatedBytes(ids);
+		Map<Long, Long> allocated = new HashMap<>();
+		for (int i = 0; i < ids.length; i++)
+			if (bytes[i] >= 0) allocated.put(ids[i], bytes[i]);
+
+		return allocated;
+	}
+}
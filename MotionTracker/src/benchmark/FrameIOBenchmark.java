@@ -0,0 +1,189 @@
+package benchmark;
+
+import image.Image;
+import imageutils.ImageEffect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import tracking.ExecutionMode;
+import tracking.PipelineExecutors;
+
+/**
+ * <p>
+ * Compares frame I/O execution modes on a throttled local file store. Every
+ * frame is read, converted to grayscale on compute pool and written back, which
+ * mirrors the way {@link tracking.Tracker} uses its executors. Each stage is
+ * started when the previous one completes, so no thread of either pool waits
+ * for another stage.
+ * </p>
+ * <p>
+ * {@link ExecutionMode#VIRTUAL_THREADS} mode is skipped on runtimes without
+ * virtual threads, since its fallback pool would be measured instead.
+ * </p>
+ * <p>
+ * Usage: FrameIOBenchmark [frames] [size] [latencyMillis] [bytesPerSecond]
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class FrameIOBenchmark
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int COMPUTE_THREADS = 9;
+	private static final int IO_THREADS = 9;
+	private static final int REPETITIONS = 3;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Runs benchmark.
+	 * </p>
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 50;
+		long bandwidth = args.length > 3 ? Long.parseLong(args[3])
+				: 20 * 1024 * 1024;
+
+		try
+		{
+			File directory = Files.createTempDirectory("frame-io-bench")
+					.toFile();
+			createFrames(directory, frames, size);
+			ThrottledFileStore store = new ThrottledFileStore(directory,
+					latency, bandwidth);
+
+			System.out.println("Frames: " + frames + ", size: " + size + "x"
+					+ size + ", latency: " + latency + " ms, bandwidth: "
+					+ bandwidth + " B/s");
+			for (ExecutionMode mode : ExecutionMode.values())
+			{
+				if (mode == ExecutionMode.VIRTUAL_THREADS
+						&& !PipelineExecutors.areVirtualThreadsAvailable())
+				{
+					System.out.println(mode + ": skipped, virtual threads "
+							+ "are not available in this runtime");
+					continue;
+				}
+
+				long best = Long.MAX_VALUE;
+				for (int i = 0; i < REPETITIONS; i++)
+					best = Math.min(best, runOnce(store, mode, frames));
+
+				System.out.println(mode + ": " + best / 1000000 + " ms ("
+						+ (frames * 1000000000L / best) + " frames/s)");
+			}
+
+			for (File f : directory.listFiles())
+				f.delete();
+			directory.delete();
+		}
+		catch (IOException | InterruptedException | ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static long runOnce(final ThrottledFileStore store,
+			ExecutionMode mode, int frames) throws InterruptedException,
+			ExecutionException
+	{
+		final PipelineExecutors executors = new PipelineExecutors(mode,
+				COMPUTE_THREADS, IO_THREADS);
+		long startTime = System.nanoTime();
+
+		List<CompletableFuture<Void>> writes = new ArrayList<>(frames);
+		for (int i = 0; i < frames; i++)
+		{
+			final String name = frameName(i);
+			writes.add(CompletableFuture.supplyAsync(new Supplier<Image>()
+			{
+				@Override
+				public Image get()
+				{
+					try
+					{
+						return store.read(name);
+					}
+					catch (IOException e)
+					{
+						throw new UncheckedIOException(e);
+					}
+				}
+			}, executors.getIOExecutor()).thenApplyAsync(
+					new Function<Image, Image>()
+					{
+						@Override
+						public Image apply(Image frame)
+						{
+							return ImageEffect.getGrayscale(frame);
+						}
+					}, executors.getComputeExecutor()).thenAcceptAsync(
+					new Consumer<Image>()
+					{
+						@Override
+						public void accept(Image result)
+						{
+							try
+							{
+								store.write(result, "result-" + name);
+							}
+							catch (IOException e)
+							{
+								throw new UncheckedIOException(e);
+							}
+						}
+					}, executors.getIOExecutor()));
+		}
+
+		for (CompletableFuture<Void> write : writes)
+			write.get();
+		long duration = System.nanoTime() - startTime;
+		executors.shutdownAndWait();
+
+		return duration;
+	}
+
+	private static void createFrames(File directory, int frames, int size)
+			throws IOException
+	{
+		Random random = new Random(frames);
+		Image frame = new Image(size, size);
+
+		for (int i = 0; i < frames; i++)
+		{
+			for (int w = 0; w < size; w++)
+				for (int h = 0; h < size; h++)
+				{
+					int gray = random.nextInt(256);
+					frame.setRGB(w, h, gray, gray, gray);
+				}
+			frame.save(new File(directory, frameName(i)).getPath());
+		}
+	}
+
+	private static String frameName(int index)
+	{
+		return "frame" + index + ".png";
+	}
+}
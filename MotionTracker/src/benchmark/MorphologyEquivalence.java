@@ -0,0 +1,165 @@
+package benchmark;
+
+import image.Image;
+import imageutils.ImageEffect;
+import imageutils.ImageEffect.MorphologyOperation;
+
+import java.awt.Color;
+import java.util.Random;
+
+/**
+ * <p>
+ * Checks that {@link ImageEffect#morphology} gives exactly the same images as
+ * {@link ImageEffect#erosion} and {@link ImageEffect#dilatation} called one
+ * after another. Chains of random operations and mask sizes are run on random
+ * binarized images, margins and images smaller than masks included, some of
+ * them being views into larger images.
+ * </p>
+ * <p>
+ * Usage: MorphologyEquivalence [cases] [seed]
+ * </p>
+ * <p>
+ * Exits with status 1 if any case differs, after printing the first
+ * differing pixel of every such case.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class MorphologyEquivalence
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int MAX_SIDE = 64;
+	private static final int MAX_OPERATIONS = 4;
+	private static final int MAX_MASK_SIZE = 9;
+	/* Pairs of shape and background channel values */
+	private static final int[][] CHANNEL_VALUES = { { 255, 0 }, { 0, 255 },
+			{ 200, 30 } };
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Runs all cases.
+	 * </p>
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		int cases = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		if (cases <= 0)
+			throw new IllegalArgumentException(
+					"Number of cases must be positive!");
+
+		Random random = new Random(seed);
+		int failures = 0;
+		for (int i = 0; i < cases; i++)
+			if (!check(i, random)) failures++;
+
+		System.out.println(cases + " cases, seed " + seed + ": "
+				+ (failures == 0 ? "all equal" : failures + " differ"));
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * <p>
+	 * Checks single random case and returns whether both ways agree.
+	 * </p>
+	 */
+	private static boolean check(int number, Random random)
+	{
+		int[] values = CHANNEL_VALUES[random.nextInt(CHANNEL_VALUES.length)];
+		int shape = values[0], background = values[1];
+		int width = 1 + random.nextInt(MAX_SIDE);
+		int height = 1 + random.nextInt(MAX_SIDE);
+		boolean isView = random.nextInt(3) == 0;
+
+		Image img = createImage(random, isView ? width + random.nextInt(16)
+				: width, isView ? height + random.nextInt(16) : height, shape,
+				background);
+		if (isView)
+			img = img.getSubImage(img.getWidth() - width, img.getHeight()
+					- height, width, height);
+
+		MorphologyOperation[] operations = new MorphologyOperation[1 + random
+				.nextInt(MAX_OPERATIONS)];
+		boolean[] isDilatation = new boolean[operations.length];
+		int[] maskSizes = new int[operations.length];
+		StringBuilder chain = new StringBuilder();
+		for (int i = 0; i < operations.length; i++)
+		{
+			isDilatation[i] = random.nextBoolean();
+			maskSizes[i] = 1 + 2 * random.nextInt((MAX_MASK_SIZE + 1) / 2);
+			operations[i] = isDilatation[i] ? MorphologyOperation
+					.dilatation(maskSizes[i]) : MorphologyOperation
+					.erosion(maskSizes[i]);
+			chain.append(isDilatation[i] ? " dilatation(" : " erosion(")
+					.append(maskSizes[i]).append(')');
+		}
+
+		Image expected = img;
+		for (int i = 0; i < operations.length; i++)
+			expected = isDilatation[i] ? ImageEffect.dilatation(expected,
+					shape, background, maskSizes[i]) : ImageEffect.erosion(
+					expected, shape, background, maskSizes[i]);
+		Image actual = ImageEffect.morphology(img, shape, background,
+				operations);
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (expected.getRGB(x, y) != actual.getRGB(x, y))
+				{
+					System.out.println(String.format(
+							"Case %d, %dx%d%s, shape %d, background %d,%s: "
+									+ "pixel (%d, %d) is %08x instead of %08x",
+							number, width, height, isView ? " view" : "",
+							shape, background, chain, x, y,
+							actual.getRGB(x, y), expected.getRGB(x, y)));
+					return false;
+				}
+
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Returns binarized image with random rectangles of shape and scattered
+	 * single pixels of both colors, so that masks meet edges, holes and specks.
+	 * </p>
+	 */
+	private static Image createImage(Random random, int width, int height,
+			int shape, int background)
+	{
+		int shapeColor = new Color(shape, shape, shape).getRGB();
+		int backgroundColor = new Color(background, background, background)
+				.getRGB();
+		Image img = new Image(width, height, backgroundColor);
+
+		int rectangles = random.nextInt(6);
+		for (int i = 0; i < rectangles; i++)
+		{
+			int left = random.nextInt(width), top = random.nextInt(height);
+			int right = Math.min(width, left + 1
+					+ random.nextInt(MAX_SIDE / 2));
+			int bottom = Math.min(height, top + 1
+					+ random.nextInt(MAX_SIDE / 2));
+			for (int y = top; y < bottom; y++)
+				for (int x = left; x < right; x++)
+					img.setRGB(x, y, shapeColor);
+		}
+
+		double noise = random.nextDouble() * 0.2;
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (random.nextDouble() < noise)
+					img.setRGB(x, y, random.nextBoolean() ? shapeColor
+							: backgroundColor);
+
+		return img;
+	}
+}
@@ -0,0 +1,363 @@
+package benchmark;
+
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import tracking.Tracker;
+
+/**
+ * <p>
+ * Deterministic sequence of blobs moving over noisy background, with known
+ * position of every blob on every frame. Blobs wander, bounce off borders,
+ * grow, divide into two smaller ones and pass over each other. Background
+ * brightness drifts slowly, as illumination of real recordings does.
+ * </p>
+ * <p>
+ * No side of a blob is short enough for {@link Tracker} to drop it as noise,
+ * so every blob of ground truth can be detected.
+ * </p>
+ * <p>
+ * The first frame shows background only, since trackers build their
+ * background from it. Sequence depends only on its parameters and seed, and
+ * every frame can be rendered on its own, in any order.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class SyntheticSequence
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	public static final String FRAME_PATTERN = "frame%d.png";
+	public static final String GROUND_TRUTH = "groundtruth.csv";
+	/* Changes whenever rendered frames do, so stale renderings are not reused */
+	public static final int VERSION = 2;
+
+	private static final int BACKGROUND_LEVEL = 40;
+	private static final int GRADIENT = 12;
+	private static final int DRIFT = 6;
+	private static final int CONTRAST = 50;
+	private static final double MIN_RADIUS = 14;
+	private static final double MAX_RADIUS = 24;
+	private static final double DIVISION_RADIUS = 20;
+	private static final double DIVISION_PROBABILITY = 0.01;
+	private static final double GROWTH = 0.02;
+	private static final double MAX_SPEED = 3;
+	private static final int MAX_POPULATION_FACTOR = 4;
+	/*
+	 * Tracker keeps objects whose both sides exceed SMALL_BACTERIA, a pixel
+	 * more on each end covers the rim noise can cut off. Constant is inlined,
+	 * so Tracker is not initialized before its properties are set.
+	 */
+	private static final int MIN_AXIS_RADIUS = Tracker.SMALL_BACTERIA / 2 + 2;
+
+	private final int width, height, frameCount;
+	private final long seed;
+	private final List<List<Blob>> blobsOnFrames = new ArrayList<>();
+
+	/**
+	 * <p>
+	 * State of single blob on single frame.
+	 * </p>
+	 */
+	private static final class Blob
+	{
+		private final int id, parentId;
+		private double x, y, vx, vy, radius;
+		private final double aspect;
+
+		private Blob(int id, int parentId, double x, double y, double vx,
+				double vy, double radius, double aspect)
+		{
+			this.id = id;
+			this.parentId = parentId;
+			this.x = x;
+			this.y = y;
+			this.vx = vx;
+			this.vy = vy;
+			this.radius = radius;
+			this.aspect = aspect;
+		}
+
+		private Blob moved()
+		{
+			return new Blob(id, parentId, x + vx, y + vy, vx, vy, radius,
+					aspect);
+		}
+
+		private int getRadiusX()
+		{
+			return (int) radius;
+		}
+
+		private int getRadiusY()
+		{
+			return Math.max(MIN_AXIS_RADIUS, (int) (radius * aspect));
+		}
+	}
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Simulates sequence of given resolution and length, with given number of
+	 * blobs per megapixel on the first frames.
+	 * </p>
+	 * 
+	 * @param width
+	 * @param height
+	 * @param frameCount
+	 * @param density
+	 * @param seed
+	 */
+	public SyntheticSequence(int width, int height, int frameCount,
+			double density, long seed)
+	{
+		if (width <= 4 * MAX_RADIUS || height <= 4 * MAX_RADIUS)
+			throw new IllegalArgumentException(
+					"Dimensions must fit a few blobs!");
+		if (frameCount <= 1)
+			throw new IllegalArgumentException(
+					"Sequence needs more than one frame");
+		if (density <= 0)
+			throw new IllegalArgumentException("Density must be positive!");
+
+		this.width = width;
+		this.height = height;
+		this.frameCount = frameCount;
+		this.seed = seed;
+		simulate(Math.max(1, (int) Math.round(density * width * height
+				/ 1000000.0)));
+	}
+
+	/**
+	 * <p>
+	 * Returns number of frames in sequence.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getFrameCount()
+	{
+		return frameCount;
+	}
+
+	/**
+	 * <p>
+	 * Returns bounding rectangles of blobs visible on given frame, by blob
+	 * identifier.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	public Map<Integer, ShapeRectangle> getGroundTruth(int frame)
+	{
+		Map<Integer, ShapeRectangle> truth = new TreeMap<>();
+		for (Blob b : blobsOnFrames.get(frame))
+		{
+			ShapeRectangle r = new ShapeRectangle();
+			r.centerX = (int) b.x;
+			r.centerY = (int) b.y;
+			r.sideX = 2 * b.getRadiusX() + 1;
+			r.sideY = 2 * b.getRadiusY() + 1;
+			truth.put(b.id, r);
+		}
+
+		return truth;
+	}
+
+	/**
+	 * <p>
+	 * Renders given frame as 8-bit gray image.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	public BufferedImage renderFrame(int frame)
+	{
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_GRAY);
+		int[] levels = new int[width * height];
+		Random noise = new Random(seed * 31 + frame);
+		double drift = DRIFT * Math.sin(2 * Math.PI * frame / frameCount);
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				levels[y * width + x] = (int) (BACKGROUND_LEVEL + drift)
+						+ GRADIENT * x / width;
+
+		/* Overlapping blobs do not add up, the brighter one is seen */
+		for (Blob b : blobsOnFrames.get(frame))
+		{
+			int rx = b.getRadiusX(), ry = b.getRadiusY();
+			int cx = (int) b.x, cy = (int) b.y;
+			for (int dy = -ry; dy <= ry; dy++)
+				for (int dx = -rx; dx <= rx; dx++)
+				{
+					int x = cx + dx, y = cy + dy;
+					if (x < 0 || y < 0 || x >= width || y >= height) continue;
+					if ((double) dx * dx / (rx * rx) + (double) dy * dy
+							/ (ry * ry) > 1) continue;
+
+					int level = (int) (BACKGROUND_LEVEL + drift) + CONTRAST;
+					levels[y * width + x] = Math.max(levels[y * width + x],
+							level);
+				}
+		}
+
+		for (int i = 0; i < levels.length; i++)
+			levels[i] = Math.min(255, Math.max(0, levels[i]
+					+ noise.nextInt(5) + noise.nextInt(5) - 4));
+		image.getRaster().setPixels(0, 0, width, height, levels);
+
+		return image;
+	}
+
+	/**
+	 * <p>
+	 * Renders all frames to given directory, named after FRAME_PATTERN, and
+	 * writes ground truth to GROUND_TRUTH file there. Each line of ground
+	 * truth holds frame, blob identifier, identifier of the blob it divided
+	 * from (0 for none) and its bounding rectangle as center and sides.
+	 * </p>
+	 * 
+	 * @param directory
+	 * @param executor
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public void write(final File directory, ExecutorService executor)
+			throws IOException, InterruptedException, ExecutionException
+	{
+		directory.mkdirs();
+		List<Future<Void>> writes = new ArrayList<>(frameCount);
+		for (int i = 0; i < frameCount; i++)
+		{
+			final int frame = i;
+			writes.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					ImageIO.write(renderFrame(frame), "png", new File(
+							directory, String.format(FRAME_PATTERN, frame)));
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Void> write : writes)
+			write.get();
+
+		/* Ground truth is written last, so it marks complete sequence */
+		try (PrintWriter out = new PrintWriter(new File(directory,
+				GROUND_TRUTH), "UTF-8"))
+		{
+			out.println("frame,id,parent,centerX,centerY,sideX,sideY");
+			for (int f = 0; f < frameCount; f++)
+				for (Blob b : blobsOnFrames.get(f))
+					out.println(f + "," + b.id + "," + b.parentId + ","
+							+ (int) b.x + "," + (int) b.y + ","
+							+ (2 * b.getRadiusX() + 1) + ","
+							+ (2 * b.getRadiusY() + 1));
+		}
+	}
+
+	private void simulate(int initialCount)
+	{
+		Random random = new Random(seed);
+		List<Blob> blobs = new ArrayList<>();
+		int nextId = 1;
+
+		for (int i = 0; i < initialCount; i++)
+		{
+			double radius = MIN_RADIUS + random.nextDouble()
+					* (DIVISION_RADIUS - MIN_RADIUS);
+			blobs.add(new Blob(nextId++, 0, MAX_RADIUS + random.nextDouble()
+					* (width - 2 * MAX_RADIUS), MAX_RADIUS
+					+ random.nextDouble() * (height - 2 * MAX_RADIUS),
+					random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1,
+					radius, 0.7 + 0.3 * random.nextDouble()));
+		}
+
+		blobsOnFrames.add(new ArrayList<Blob>());
+		for (int f = 1; f < frameCount; f++)
+		{
+			List<Blob> next = new ArrayList<>();
+			Iterator<Blob> it = blobs.iterator();
+			while (it.hasNext())
+			{
+				Blob b = it.next().moved();
+				b.vx = limit(b.vx + random.nextGaussian() * 0.3, MAX_SPEED);
+				b.vy = limit(b.vy + random.nextGaussian() * 0.3, MAX_SPEED);
+				b.radius = Math.min(MAX_RADIUS, b.radius + GROWTH);
+				bounce(b);
+
+				if (b.radius >= DIVISION_RADIUS
+						&& blobs.size() < MAX_POPULATION_FACTOR * initialCount
+						&& random.nextDouble() < DIVISION_PROBABILITY)
+				{
+					/* Daughters move apart along random axis */
+					double angle = random.nextDouble() * Math.PI;
+					double ax = Math.cos(angle), ay = Math.sin(angle);
+					double r = Math.max(MIN_RADIUS, b.radius * 0.75);
+					for (int side = -1; side <= 1; side += 2)
+					{
+						Blob d = new Blob(nextId++, b.id, b.x + side * ax * r
+								/ 2, b.y + side * ay * r / 2, b.vx + side * ax,
+								b.vy + side * ay, r, b.aspect);
+						bounce(d);
+						next.add(d);
+					}
+				}
+				else
+					next.add(b);
+			}
+
+			blobs = next;
+			blobsOnFrames.add(blobs);
+		}
+	}
+
+	private void bounce(Blob b)
+	{
+		double marginX = b.getRadiusX() + 1, marginY = b.getRadiusY() + 1;
+		if (b.x < marginX || b.x > width - 1 - marginX)
+		{
+			b.vx = -b.vx;
+			b.x = Math.min(width - 1 - marginX, Math.max(marginX, b.x));
+		}
+		if (b.y < marginY || b.y > height - 1 - marginY)
+		{
+			b.vy = -b.vy;
+			b.y = Math.min(height - 1 - marginY, Math.max(marginY, b.y));
+		}
+	}
+
+	private static double limit(double value, double bound)
+	{
+		return Math.max(-bound, Math.min(bound, value));
+	}
+}
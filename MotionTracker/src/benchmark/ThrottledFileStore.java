@@ -0,0 +1,125 @@
+package benchmark;
+
+import image.Image;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Local file store that imitates slow network-mounted storage. Every request
+ * pays fixed latency, and latencies of concurrent requests overlap. Data of
+ * all requests, read or written, goes through single link of limited
+ * bandwidth, so concurrent transfers queue up instead of each getting the
+ * whole bandwidth. Waiting is done with {@link Thread#sleep(long)}, so it
+ * blocks the calling thread the same way slow storage would.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class ThrottledFileStore
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private final File directory;
+	private final long latencyMillis;
+	private final long bytesPerSecond;
+	/* Time link finishes transfers reserved so far, guarded by this */
+	private long linkFreeNanos;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Creates store over given directory.
+	 * </p>
+	 * 
+	 * @param directory
+	 * @param latencyMillis
+	 * @param bytesPerSecond
+	 */
+	public ThrottledFileStore(File directory, long latencyMillis,
+			long bytesPerSecond)
+	{
+		if (latencyMillis < 0 || bytesPerSecond <= 0)
+			throw new IllegalArgumentException(
+					"Latency must not be negative and bandwidth must be positive");
+
+		this.directory = directory;
+		this.latencyMillis = latencyMillis;
+		this.bytesPerSecond = bytesPerSecond;
+		this.linkFreeNanos = System.nanoTime();
+	}
+
+	/**
+	 * <p>
+	 * Reads and decodes image with given name.
+	 * </p>
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	public Image read(String name) throws IOException
+	{
+		byte[] data = Files.readAllBytes(new File(directory, name).toPath());
+		throttle(data.length);
+
+		return new Image(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * <p>
+	 * Encodes and writes image under given name.
+	 * </p>
+	 * 
+	 * @param image
+	 * @param name
+	 * @throws IOException
+	 */
+	public void write(Image image, String name) throws IOException
+	{
+		File file = new File(directory, name);
+		image.save(file.getPath());
+		throttle(file.length());
+	}
+
+	private void throttle(long bytes) throws IOException
+	{
+		try
+		{
+			Thread.sleep(latencyMillis);
+
+			long end = reserveTransfer(bytes);
+			long remaining;
+			while ((remaining = end - System.nanoTime()) > 0)
+				TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for storage", e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Reserves link for transfer of given number of bytes after transfers
+	 * reserved before, and returns time the transfer ends at.
+	 * </p>
+	 */
+	private synchronized long reserveTransfer(long bytes)
+	{
+		long now = System.nanoTime();
+		long start = linkFreeNanos - now > 0 ? linkFreeNanos : now;
+		linkFreeNanos = start + bytes * 1000000000L / bytesPerSecond;
+
+		return linkFreeNanos;
+	}
+}
@@ -0,0 +1,217 @@
+package benchmark;
+
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import tracking.Track;
+
+/**
+ * <p>
+ * CLEAR MOT accuracy of tracks compared with ground truth. On every frame
+ * object keeps the track it was matched to before, as long as that track is
+ * still close enough, and remaining objects and tracks are matched greedily,
+ * nearest first. Track is close enough when its center lies within half of
+ * the larger side of object's rectangle.
+ * </p>
+ * <p>
+ * MOTA counts misses, false positives and identity switches against number
+ * of objects over all frames, MOTP is mean distance of matched pairs.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class TrackingAccuracy
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private int objects, misses, falsePositives, identitySwitches, matches;
+	private double distanceSum;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Compares tracks with ground truth of given sequence on frames from first
+	 * to last (inclusive).
+	 * </p>
+	 * 
+	 * @param sequence
+	 * @param tracks
+	 * @param first
+	 * @param last
+	 */
+	public TrackingAccuracy(SyntheticSequence sequence, List<Track> tracks,
+			int first, int last)
+	{
+		Map<Integer, Integer> lastMatches = new HashMap<>();
+
+		for (int f = first; f <= last; f++)
+		{
+			Map<Integer, ShapeRectangle> truth = sequence.getGroundTruth(f);
+			List<Integer> hypotheses = new ArrayList<>();
+			for (int t = 0; t < tracks.size(); t++)
+				if (tracks.get(t).getPosition(f) != null) hypotheses.add(t);
+
+			Set<Integer> matchedObjects = new HashSet<>();
+			Set<Integer> matchedTracks = new HashSet<>();
+
+			/* Correspondences from previous frames are kept if still valid */
+			for (Map.Entry<Integer, ShapeRectangle> o : truth.entrySet())
+			{
+				Integer t = lastMatches.get(o.getKey());
+				if (t == null || matchedTracks.contains(t)) continue;
+
+				ShapeRectangle position = tracks.get(t).getPosition(f);
+				if (position != null && isClose(o.getValue(), position))
+				{
+					match(distance(o.getValue(), position));
+					matchedObjects.add(o.getKey());
+					matchedTracks.add(t);
+				}
+			}
+
+			List<double[]> pairs = new ArrayList<>();
+			for (Map.Entry<Integer, ShapeRectangle> o : truth.entrySet())
+				if (!matchedObjects.contains(o.getKey()))
+					for (int t : hypotheses)
+					{
+						ShapeRectangle position = tracks.get(t).getPosition(f);
+						if (!matchedTracks.contains(t)
+								&& isClose(o.getValue(), position))
+							pairs.add(new double[] {
+									distance(o.getValue(), position),
+									o.getKey(), t });
+					}
+			Collections.sort(pairs, new Comparator<double[]>()
+			{
+				@Override
+				public int compare(double[] a, double[] b)
+				{
+					for (int i = 0; i < a.length; i++)
+						if (a[i] != b[i]) return Double.compare(a[i], b[i]);
+					return 0;
+				}
+			});
+
+			for (double[] pair : pairs)
+			{
+				int o = (int) pair[1], t = (int) pair[2];
+				if (matchedObjects.contains(o) || matchedTracks.contains(t))
+					continue;
+
+				Integer previous = lastMatches.put(o, t);
+				if (previous != null && previous != t) identitySwitches++;
+				match(pair[0]);
+				matchedObjects.add(o);
+				matchedTracks.add(t);
+			}
+
+			objects += truth.size();
+			misses += truth.size() - matchedObjects.size();
+			falsePositives += hypotheses.size() - matchedTracks.size();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Returns multiple object tracking accuracy, 1 for perfect tracking.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public double getMota()
+	{
+		if (objects == 0) return falsePositives == 0 ? 1 : 0;
+		return 1 - (double) (misses + falsePositives + identitySwitches)
+				/ objects;
+	}
+
+	/**
+	 * <p>
+	 * Returns mean distance in pixels between matched objects and tracks.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public double getMotp()
+	{
+		return matches == 0 ? 0 : distanceSum / matches;
+	}
+
+	/**
+	 * <p>
+	 * Returns number of objects summed over all frames.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getObjects()
+	{
+		return objects;
+	}
+
+	/**
+	 * <p>
+	 * Returns number of objects not matched to any track, over all frames.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * <p>
+	 * Returns number of tracks not matched to any object, over all frames.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getFalsePositives()
+	{
+		return falsePositives;
+	}
+
+	/**
+	 * <p>
+	 * Returns how many times object was matched to different track than before.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getIdentitySwitches()
+	{
+		return identitySwitches;
+	}
+
+	private void match(double distance)
+	{
+		matches++;
+		distanceSum += distance;
+	}
+
+	private static boolean isClose(ShapeRectangle object,
+			ShapeRectangle position)
+	{
+		return distance(object, position) < Math.max(object.sideX,
+				object.sideY) / 2.0;
+	}
+
+	private static double distance(ShapeRectangle r1, ShapeRectangle r2)
+	{
+		return Math.hypot(r1.centerX - r2.centerX, r1.centerY - r2.centerY);
+	}
+}
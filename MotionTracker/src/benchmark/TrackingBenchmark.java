@@ -0,0 +1,137 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import tracking.ExecutionMode;
+import tracking.PipelineExecutors;
+import tracking.Track;
+import tracking.Tracker;
+
+/**
+ * <p>
+ * Runs whole tracking pipeline on {@link SyntheticSequence} and reports its
+ * speed, memory use and accuracy, so that optimizations can be checked for
+ * both. Frames are rendered once per set of parameters, into subdirectory of
+ * given directory, and reused by later runs.
+ * </p>
+ * <p>
+ * Usage: TrackingBenchmark directory [width] [height] [frames] [density]
+ * [seed]
+ * </p>
+ * <p>
+ * All tracker.* properties are honoured, except input and number of frames,
+ * which are set to the synthetic sequence.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class TrackingBenchmark
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int COMPUTE_THREADS = 9;
+	private static final int IO_THREADS = 9;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Runs benchmark.
+	 * </p>
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		int width = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		int height = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+		int frames = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+		double density = args.length > 4 ? Double.parseDouble(args[4]) : 10;
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+
+		try
+		{
+			SyntheticSequence sequence = new SyntheticSequence(width, height,
+					frames, density, seed);
+			File directory = new File(args[0], width + "x" + height + "-"
+					+ frames + "-" + density + "-" + seed + "-v"
+					+ SyntheticSequence.VERSION);
+			if (!new File(directory, SyntheticSequence.GROUND_TRUTH).exists())
+			{
+				System.out.println("Rendering " + frames + " frames to "
+						+ directory);
+				ExecutorService executor = Executors.newFixedThreadPool(Runtime
+						.getRuntime().availableProcessors());
+				sequence.write(directory, executor);
+				executor.shutdown();
+			}
+
+			/* Tracker reads these when it is first used, which is below */
+			System.setProperty("tracker.input", new File(directory,
+					SyntheticSequence.FRAME_PATTERN).getPath());
+			System.setProperty("tracker.frames", String.valueOf(frames));
+
+			PipelineExecutors executors = new PipelineExecutors(
+					ExecutionMode.fromProperty("tracker.execution",
+							ExecutionMode.FIXED_POOL), COMPUTE_THREADS,
+					IO_THREADS);
+			System.gc();
+			for (MemoryPoolMXBean pool : ManagementFactory
+					.getMemoryPoolMXBeans())
+				pool.resetPeakUsage();
+
+			long startTime = System.nanoTime();
+			List<Track> tracks = Tracker.trackRecordedFrames(executors);
+			long duration = System.nanoTime() - startTime;
+			executors.shutdownAndWait();
+
+			TrackingAccuracy accuracy = new TrackingAccuracy(sequence, tracks,
+					1, frames - 1);
+			System.out.println("Frames: " + (frames - 1) + ", size: " + width
+					+ "x" + height + ", density: " + density + ", seed: "
+					+ seed);
+			System.out.println(String.format("Speed: %.2f frames/s (%d ms)",
+					(frames - 1) * 1e9 / duration, duration / 1000000));
+			System.out.println("Peak heap: " + getPeakHeap() / (1024 * 1024)
+					+ " MB");
+			System.out.println(String.format(
+					"MOTA: %.4f, MOTP: %.2f px, objects: %d, misses: %d, "
+							+ "false positives: %d, identity switches: %d",
+					accuracy.getMota(), accuracy.getMotp(),
+					accuracy.getObjects(), accuracy.getMisses(),
+					accuracy.getFalsePositives(),
+					accuracy.getIdentitySwitches()));
+		}
+		catch (IOException | InterruptedException | ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Returns sum of peaks of heap memory pools. Pools peak at different
+	 * moments, so this is an upper bound of heap used at once.
+	 * </p>
+	 */
+	private static long getPeakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+
+		return peak;
+	}
+}
@@ -0,0 +1,228 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * <p>
+ * Pool of off-heap memory for images of one resolution. Pixels of images
+ * allocated from arena live in direct buffers, so they do not count against
+ * heap and are never copied or scanned by garbage collector. Images can be
+ * given back one by one with {@link #release(Image)}, whose memory is then
+ * reused by next allocation, or all at once by closing the arena.
+ * </p>
+ * <p>
+ * Closing arena does not free its memory at once, as images may still be read
+ * by other threads. Direct buffers are freed by garbage collector when no
+ * image refers to them anymore, so no access can touch freed memory.
+ * </p>
+ * <p>
+ * Images from arena are ordinary {@link Image} objects, so every filter from
+ * {@link imageutils.ImageEffect} works on them directly, and their pixels and
+ * rows are read and written straight from off-heap memory. Using image after
+ * its memory was released throws {@link IllegalStateException}, also when
+ * release happens while image is being read, so pixels of the image reusing
+ * that memory are never returned instead.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class FrameArena implements Closeable
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	/* Reused slots are cleared in blocks of this size */
+	private static final byte[] ZEROS = new byte[64 * 1024];
+
+	private final int width, height, capacity;
+	private final ByteBuffer[] slots;
+	private final OffHeapDataBuffer[] owners;
+	private final Deque<Integer> freeSlots = new ArrayDeque<>();
+	private int allocatedSlots = 0;
+	private boolean isClosed = false;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Creates arena for at most capacity images of given resolution. Memory is
+	 * reserved lazily, when images are allocated.
+	 * </p>
+	 * 
+	 * @param width
+	 * @param height
+	 * @param capacity
+	 */
+	public FrameArena(int width, int height, int capacity)
+	{
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Dimensions must be positive!");
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive!");
+		if ((long) width * height * 4 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Image is too big");
+
+		this.width = width;
+		this.height = height;
+		this.capacity = capacity;
+		slots = new ByteBuffer[capacity];
+		owners = new OffHeapDataBuffer[capacity];
+	}
+
+	/**
+	 * <p>
+	 * Returns new image, filled with transparent black, whose pixels are kept
+	 * off-heap.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public Image allocate()
+	{
+		return allocate(true);
+	}
+
+	/**
+	 * <p>
+	 * Returns new image, whose pixels are kept off-heap. Reused memory is
+	 * cleared only if asked to, callers overwriting all pixels skip it.
+	 * </p>
+	 */
+	private synchronized Image allocate(boolean isCleared)
+	{
+		if (isClosed) throw new IllegalStateException("Arena is closed");
+
+		int slot;
+		if (!freeSlots.isEmpty())
+		{
+			slot = freeSlots.pop();
+			if (isCleared) clear(slots[slot]);
+		}
+		else if (allocatedSlots < capacity)
+		{
+			slot = allocatedSlots++;
+			slots[slot] = ByteBuffer.allocateDirect(width * height * 4);
+		}
+		else
+			throw new IllegalStateException("All " + capacity
+					+ " images of arena are in use");
+
+		owners[slot] = new OffHeapDataBuffer(slots[slot], width * height,
+				slot);
+		return Image.wrap(createImage(owners[slot]));
+	}
+
+	/**
+	 * <p>
+	 * Returns off-heap copy of provided image.
+	 * </p>
+	 * 
+	 * @param img
+	 * @return
+	 */
+	public Image copyOf(Image img)
+	{
+		if (img.getWidth() != width || img.getHeight() != height)
+			throw new IllegalArgumentException(
+					"Image resolution must match arena resolution");
+
+		/* Every pixel is overwritten, so reused memory is not cleared */
+		Image copy = allocate(false);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++)
+		{
+			img.getRow(y, row);
+			copy.setRow(y, row);
+		}
+
+		return copy;
+	}
+
+	/**
+	 * <p>
+	 * Gives memory of image back to arena. Image must not be used afterwards.
+	 * </p>
+	 * 
+	 * @param img
+	 */
+	public synchronized void release(Image img)
+	{
+		DataBuffer buffer = img.getBufferedImage().getRaster().getDataBuffer();
+		if (!(buffer instanceof OffHeapDataBuffer))
+			throw new IllegalArgumentException(
+					"Image was not allocated off-heap");
+
+		OffHeapDataBuffer offHeap = (OffHeapDataBuffer) buffer;
+		int slot = offHeap.getSlot();
+		if (slot >= capacity || owners[slot] != offHeap)
+			throw new IllegalArgumentException(
+					"Image does not belong to this arena or was released");
+
+		offHeap.release();
+		owners[slot] = null;
+		freeSlots.push(slot);
+	}
+
+	/**
+	 * <p>
+	 * Returns number of bytes of off-heap memory currently reserved by arena.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public synchronized long getReservedBytes()
+	{
+		return (long) allocatedSlots * width * height * 4;
+	}
+
+	/**
+	 * <p>
+	 * Releases all images and drops arena memory, which garbage collector
+	 * frees once images referring to it are gone.
+	 * </p>
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (isClosed) return;
+		isClosed = true;
+
+		for (int slot = 0; slot < allocatedSlots; slot++)
+		{
+			if (owners[slot] != null) owners[slot].release();
+			owners[slot] = null;
+			slots[slot] = null;
+		}
+		freeSlots.clear();
+	}
+
+	private BufferedImage createImage(DataBuffer buffer)
+	{
+		ColorModel colorModel = ColorModel.getRGBdefault();
+		SampleModel sampleModel = colorModel.createCompatibleSampleModel(
+				width, height);
+		WritableRaster raster = Raster.createWritableRaster(sampleModel,
+				buffer, null);
+
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	private static void clear(ByteBuffer memory)
+	{
+		ByteBuffer target = memory.duplicate();
+		target.clear();
+		while (target.hasRemaining())
+			target.put(ZEROS, 0, Math.min(ZEROS.length, target.remaining()));
+	}
+}
@@ -0,0 +1,158 @@
+package image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * <p>
+ * Reads images straight into 8-bit gray levels. Single-channel 8-bit images
+ * are decoded directly into gray buffer, without going through RGB, and gray
+ * levels are the samples stored in file. Other images are decoded as usual
+ * and their channels are averaged, as
+ * {@link imageutils.ImageEffect#getGrayscale(Image)} does.
+ * </p>
+ * <p>
+ * Only part of image can be read, and image can be subsampled while it is
+ * decoded, so neither the rest of image nor skipped pixels ever reach
+ * memory.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class GrayscaleLoader
+{
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Reads whole image from given path.
+	 * </p>
+	 * 
+	 * @param pathname
+	 * @return
+	 * @throws IOException
+	 */
+	public static Image read(String pathname) throws IOException
+	{
+		return read(pathname, null, 1);
+	}
+
+	/**
+	 * <p>
+	 * Reads region of image from given path, taking every subsampling-th
+	 * pixel of every subsampling-th row. Region is clipped to image bounds;
+	 * null region reads whole image.
+	 * </p>
+	 * 
+	 * @param pathname
+	 * @param region
+	 * @param subsampling
+	 * @return
+	 * @throws IOException
+	 */
+	public static Image read(String pathname, Rectangle region,
+			int subsampling) throws IOException
+	{
+		if (subsampling <= 0)
+			throw new IllegalArgumentException("Subsampling must be positive!");
+
+		try (ImageInputStream stream = ImageIO
+				.createImageInputStream(new File(pathname)))
+		{
+			if (stream == null)
+				throw new IOException("Cannot read " + pathname);
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext())
+				throw new IOException("No reader for " + pathname);
+
+			ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput(stream, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				if (region != null)
+				{
+					Rectangle bounds = new Rectangle(reader.getWidth(0),
+							reader.getHeight(0));
+					Rectangle clipped = region.intersection(bounds);
+					if (clipped.isEmpty())
+						throw new IllegalArgumentException(
+								"Region must overlap image!");
+					param.setSourceRegion(clipped);
+				}
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+				ImageTypeSpecifier gray = findGrayType(reader);
+				if (gray != null)
+				{
+					param.setDestinationType(gray);
+					return Image.wrapGrayscale(reader.read(0, param)
+							.getRaster());
+				}
+
+				return Image.wrapGrayscale(averageChannels(reader.read(0,
+						param)));
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+
+	private static ImageTypeSpecifier findGrayType(ImageReader reader)
+			throws IOException
+	{
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		while (types.hasNext())
+		{
+			ImageTypeSpecifier type = types.next();
+			int dataType = type.getSampleModel().getDataType();
+			if (type.getNumBands() == 1 && type.getBitsPerBand(0) == 8
+					&& dataType == DataBuffer.TYPE_BYTE
+					&& type.getColorModel().getNumColorComponents() == 1)
+				return type;
+		}
+
+		return null;
+	}
+
+	private static WritableRaster averageChannels(BufferedImage image)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		WritableRaster raster = Raster.createInterleavedRaster(
+				DataBuffer.TYPE_BYTE, width, height, 1, null);
+		byte[] levels = ((DataBufferByte) raster.getDataBuffer()).getData();
+		int[] row = new int[width];
+
+		for (int y = 0; y < height; y++)
+		{
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++)
+			{
+				int rgb = row[x];
+				levels[y * width + x] = (byte) ((((rgb >> 16) & 0xFF)
+						+ ((rgb >> 8) & 0xFF) + (rgb & 0xFF)) / 3);
+			}
+		}
+
+		return raster;
+	}
+}
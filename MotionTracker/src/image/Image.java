@@ -3,8 +3,13 @@ package image;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -15,6 +20,12 @@ import javax.swing.JLabel;
  * <p>
  * Class representing image and providing methods to easily operate on it.
  * </p>
+ * <p>
+ * Single image must not be used by several threads at once, except that
+ * several threads may read it, or set disjoint rows of new image with
+ * {@link #setRow}. Its copies and views can be handed to other threads, as
+ * each of them copies shared pixels before writing.
+ * </p>
  * 
  * @author Piotr Waszkiewicz
  *
@@ -24,10 +35,20 @@ public class Image
 	/***************/
 	/* VARIABLES */
 	/***************/
+	private static final IndexColorModel GRAY_LEVELS = createGrayLevels();
+
 	private BufferedImage image;
+	/* Pixels may be seen by copy or view, so they are copied before writing */
+	private volatile boolean isShared = false;
 	private int redChannelMask = 0x00FF0000;
 	private int greenChannelMask = 0x0000FF00;
 	private int blueChannelMask = 0x000000FF;
+	/*
+	 * Pixels of image allocated from FrameArena are read and written here
+	 * directly, as BufferedImage has no fast path for such memory
+	 */
+	private OffHeapDataBuffer offHeap;
+	private int offHeapOrigin, offHeapStride;
 
 	/***************/
 	/* METHODS */
@@ -43,6 +64,25 @@ public class Image
 	public Image(String pathname) throws IOException
 	{
 		image = ImageIO.read(new File(pathname));
+		if (image == null)
+			throw new IOException("File does not contain supported image: "
+					+ pathname);
+	}
+
+	/**
+	 * <p>
+	 * Constructs image from data read from provided stream. Stream is not
+	 * closed by this constructor.
+	 * </p>
+	 * 
+	 * @param stream
+	 * @throws IOException
+	 */
+	public Image(InputStream stream) throws IOException
+	{
+		image = ImageIO.read(stream);
+		if (image == null)
+			throw new IOException("Stream does not contain supported image");
 	}
 
 	/**
@@ -90,11 +130,146 @@ public class Image
 	 */
 	public Image(BufferedImage image)
 	{
-		this.image = new BufferedImage(image.getWidth(), image.getHeight(),
-				image.getType());
-		Graphics g = this.image.getGraphics();
+		this.image = copyOf(image);
+	}
+
+	/**
+	 * <p>
+	 * Returns Image object using provided image without copying it.
+	 * </p>
+	 */
+	static Image wrap(BufferedImage image)
+	{
+		Image result = new Image();
+		result.image = image;
+
+		WritableRaster raster = image.getRaster();
+		if (raster.getDataBuffer() instanceof OffHeapDataBuffer)
+		{
+			/* View is a child raster, shifted within its parent's pixels */
+			result.offHeap = (OffHeapDataBuffer) raster.getDataBuffer();
+			result.offHeapStride = ((SinglePixelPackedSampleModel) raster
+					.getSampleModel()).getScanlineStride();
+			result.offHeapOrigin = -raster.getSampleModelTranslateY()
+					* result.offHeapStride - raster.getSampleModelTranslateX();
+		}
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Returns Image object storing gray levels in given single band raster,
+	 * without copying it.
+	 * </p>
+	 */
+	static Image wrapGrayscale(WritableRaster raster)
+	{
+		return wrap(new BufferedImage(GRAY_LEVELS, raster, false, null));
+	}
+
+	private Image()
+	{
+		// Used by wrap, which sets image itself
+	}
+
+	private static BufferedImage copyOf(BufferedImage image)
+	{
+		/* Palette would be lost when drawing, so raster is copied instead */
+		ColorModel model = image.getColorModel();
+		if (model instanceof IndexColorModel)
+		{
+			/* Raster of view may not start at zero, BufferedImage needs that */
+			WritableRaster raster = image.getRaster();
+			WritableRaster copy = raster.createCompatibleWritableRaster(
+					image.getWidth(), image.getHeight());
+			copy.setRect(-raster.getMinX(), -raster.getMinY(), raster);
+			return new BufferedImage(model, copy, false, null);
+		}
+
+		int type = image.getType();
+		if (type == BufferedImage.TYPE_CUSTOM)
+			type = BufferedImage.TYPE_INT_ARGB;
+
+		BufferedImage copy = new BufferedImage(image.getWidth(),
+				image.getHeight(), type);
+		Graphics g = copy.getGraphics();
 		g.drawImage(image, 0, 0, null);
 		g.dispose();
+
+		return copy;
+	}
+
+	/**
+	 * <p>
+	 * Gives this object its own pixels if they are shared, so that writing
+	 * does not change any copy or view.
+	 * </p>
+	 */
+	private void prepareForWriting()
+	{
+		if (!isShared) return;
+
+		image = offHeap != null ? copyOfOffHeap() : copyOf(image);
+		offHeap = null;
+		isShared = false;
+	}
+
+	/**
+	 * <p>
+	 * Returns copy of off-heap pixels on heap, copied row after row directly.
+	 * </p>
+	 */
+	private BufferedImage copyOfOffHeap()
+	{
+		BufferedImage copy = new BufferedImage(image.getWidth(),
+				image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		int[] row = new int[image.getWidth()];
+		for (int y = 0; y < image.getHeight(); y++)
+		{
+			getRow(y, row);
+			copy.setRGB(0, y, row.length, 1, row, 0, row.length);
+		}
+
+		return copy;
+	}
+
+	/**
+	 * <p>
+	 * Returns index of given pixel in off-heap memory, checking bounds as
+	 * BufferedImage does.
+	 * </p>
+	 */
+	private int getOffHeapIndex(int x, int y)
+	{
+		if (x < 0 || y < 0 || x >= image.getWidth() || y >= image.getHeight())
+			throw new ArrayIndexOutOfBoundsException(
+					"Coordinate out of bounds!");
+
+		return offHeapOrigin + y * offHeapStride + x;
+	}
+
+	private static IndexColorModel createGrayLevels()
+	{
+		byte[] levels = new byte[256];
+		for (int i = 0; i < levels.length; i++)
+			levels[i] = (byte) i;
+
+		return new IndexColorModel(8, levels.length, levels, levels, levels);
+	}
+
+	/**
+	 * <p>
+	 * Returns true if image stores only 8-bit gray levels, as images read by
+	 * {@link GrayscaleLoader} do. Red, green and blue channels of such image
+	 * are always equal and drawing in color on it is not possible.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public boolean isGrayscale()
+	{
+		return image.getColorModel() == GRAY_LEVELS;
 	}
 
 	/**
@@ -108,7 +283,7 @@ public class Image
 	 */
 	public int getRed(int x, int y)
 	{
-		int rgb = image.getRGB(x, y);
+		int rgb = getRGB(x, y);
 		return (rgb & redChannelMask) >> 16;
 	}
 
@@ -123,7 +298,7 @@ public class Image
 	 */
 	public int getGreen(int x, int y)
 	{
-		int rgb = image.getRGB(x, y);
+		int rgb = getRGB(x, y);
 		return (rgb & greenChannelMask) >> 8;
 	}
 
@@ -138,7 +313,7 @@ public class Image
 	 */
 	public int getBlue(int x, int y)
 	{
-		int rgb = image.getRGB(x, y);
+		int rgb = getRGB(x, y);
 		return (rgb & blueChannelMask);
 	}
 
@@ -153,7 +328,11 @@ public class Image
 	 */
 	public void setRGB(int x, int y, int rgb)
 	{
-		image.setRGB(x, y, rgb);
+		prepareForWriting();
+		if (offHeap != null)
+			offHeap.setElem(getOffHeapIndex(x, y), rgb);
+		else
+			image.setRGB(x, y, rgb);
 	}
 
 	/**
@@ -167,9 +346,92 @@ public class Image
 	 */
 	public int getRGB(int x, int y)
 	{
+		if (offHeap != null)
+			return offHeap.getElem(getOffHeapIndex(x, y));
+
 		return image.getRGB(x, y);
 	}
 
+	/**
+	 * <p>
+	 * Returns RGB values of all pixels, stored row after row.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int[] getPixels()
+	{
+		if (offHeap != null)
+		{
+			int[] pixels = new int[image.getWidth() * image.getHeight()];
+			for (int y = 0; y < image.getHeight(); y++)
+				offHeap.get(offHeapOrigin + y * offHeapStride, pixels, y
+						* image.getWidth(), image.getWidth());
+			return pixels;
+		}
+
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null,
+				0, image.getWidth());
+	}
+
+	/**
+	 * <p>
+	 * Sets RGB values of all pixels, stored row after row.
+	 * </p>
+	 * 
+	 * @param pixels
+	 */
+	public void setPixels(int[] pixels)
+	{
+		if (pixels.length != image.getWidth() * image.getHeight())
+			throw new IllegalArgumentException(
+					"Number of pixels must match image resolution");
+
+		prepareForWriting();
+		if (offHeap != null)
+			for (int y = 0; y < image.getHeight(); y++)
+				offHeap.put(offHeapOrigin + y * offHeapStride, pixels, y
+						* image.getWidth(), image.getWidth());
+		else
+			image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels,
+					0, image.getWidth());
+	}
+
+	/**
+	 * <p>
+	 * Copies RGB values of given row of pixels into provided array.
+	 * </p>
+	 * 
+	 * @param y
+	 * @param pixels
+	 */
+	public void getRow(int y, int[] pixels)
+	{
+		if (offHeap != null)
+			offHeap.get(getOffHeapIndex(0, y), pixels, 0, image.getWidth());
+		else
+			image.getRGB(0, y, image.getWidth(), 1, pixels, 0,
+					image.getWidth());
+	}
+
+	/**
+	 * <p>
+	 * Sets RGB values of given row of pixels.
+	 * </p>
+	 * 
+	 * @param y
+	 * @param pixels
+	 */
+	public void setRow(int y, int[] pixels)
+	{
+		prepareForWriting();
+		if (offHeap != null)
+			offHeap.put(getOffHeapIndex(0, y), pixels, 0, image.getWidth());
+		else
+			image.setRGB(0, y, image.getWidth(), 1, pixels, 0,
+					image.getWidth());
+	}
+
 	/**
 	 * <p>
 	 * Sets RGB value for given pixel position.
@@ -188,7 +450,7 @@ public class Image
 			throw new IllegalArgumentException(
 					"Channel values must be between 0 and 255");
 
-		image.setRGB(x, y, (new Color(red, green, blue)).getRGB());
+		setRGB(x, y, (new Color(red, green, blue)).getRGB());
 	}
 
 	/**
@@ -210,7 +472,7 @@ public class Image
 			throw new IllegalArgumentException(
 					"Channel values must be between 0 and 255");
 
-		image.setRGB(x, y, (new Color(red, green, blue, alpha)).getRGB());
+		setRGB(x, y, (new Color(red, green, blue, alpha)).getRGB());
 	}
 
 	/**
@@ -255,14 +517,51 @@ public class Image
 
 	/**
 	 * <p>
-	 * Returns the deep copy of this object.
+	 * Returns the copy of this object. Pixels are shared until either image
+	 * is written to, so copying is cheap, and image which is written to gets
+	 * its own pixels first. Images allocated from {@link FrameArena} are
+	 * copied at once, as their memory can be released.
 	 * </p>
 	 * 
 	 * @return
 	 */
 	public Image getCopy()
 	{
-		return new Image(image);
+		if (offHeap != null) return wrap(copyOfOffHeap());
+
+		isShared = true;
+		Image copy = wrap(image);
+		copy.isShared = true;
+		return copy;
+	}
+
+	/**
+	 * <p>
+	 * Returns rectangular part of this image, without copying it. Like
+	 * copy, view gets its own pixels when either it or this image is written
+	 * to. View of image allocated from {@link FrameArena} can only be used
+	 * until that image is released.
+	 * </p>
+	 * 
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public Image getSubImage(int x, int y, int width, int height)
+	{
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Dimensions must be positive!");
+		if (x < 0 || y < 0 || x + width > image.getWidth()
+				|| y + height > image.getHeight())
+			throw new IllegalArgumentException(
+					"Sub-image must lie within image");
+
+		isShared = true;
+		Image view = wrap(image.getSubimage(x, y, width, height));
+		view.isShared = true;
+		return view;
 	}
 
 	/**
@@ -274,9 +573,36 @@ public class Image
 	 */
 	public Graphics getGraphics()
 	{
+		prepareForWriting();
 		return image.getGraphics();
 	}
 
+	/**
+	 * <p>
+	 * Draws this image scaled to given rectangle using provided graphics.
+	 * </p>
+	 * 
+	 * @param g
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 */
+	public void drawOn(Graphics g, int x, int y, int width, int height)
+	{
+		g.drawImage(image, x, y, width, height, null);
+	}
+
+	/**
+	 * <p>
+	 * Returns image this object operates on.
+	 * </p>
+	 */
+	BufferedImage getBufferedImage()
+	{
+		return image;
+	}
+
 	/**
 	 * <p>
 	 * Saves image to file.
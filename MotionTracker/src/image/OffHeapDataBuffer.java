@@ -0,0 +1,143 @@
+package image;
+
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * <p>
+ * Data buffer keeping packed ARGB pixels in direct (off-heap) memory. Once
+ * released, every access to its pixels fails.
+ * </p>
+ * <p>
+ * Released memory is reused for other images, so access must not race with
+ * release. Reads are optimistic: they check afterwards that buffer was not
+ * released meanwhile, and fail if it was, instead of returning pixels of
+ * another image. Writes hold read lock, which release waits for, so they can
+ * never land in memory already given to another image.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+class OffHeapDataBuffer extends DataBuffer
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private final IntBuffer pixels;
+	private final int slot;
+	private final StampedLock access = new StampedLock();
+	private volatile boolean isReleased = false;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	OffHeapDataBuffer(ByteBuffer memory, int size, int slot)
+	{
+		super(TYPE_INT, size);
+		this.slot = slot;
+		pixels = memory.order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	@Override
+	public int getElem(int bank, int i)
+	{
+		long stamp = access.tryOptimisticRead();
+		checkReleased();
+		int value = pixels.get(i);
+		checkUnchanged(stamp);
+
+		return value;
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val)
+	{
+		long stamp = access.readLock();
+		try
+		{
+			checkReleased();
+			pixels.put(i, val);
+		}
+		finally
+		{
+			access.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Copies length pixels starting at given index into target array.
+	 * </p>
+	 */
+	void get(int index, int[] target, int offset, int length)
+	{
+		long stamp = access.tryOptimisticRead();
+		checkReleased();
+		IntBuffer source = pixels.duplicate();
+		source.position(index);
+		source.get(target, offset, length);
+		checkUnchanged(stamp);
+	}
+
+	/**
+	 * <p>
+	 * Copies length pixels from source array to given index.
+	 * </p>
+	 */
+	void put(int index, int[] source, int offset, int length)
+	{
+		long stamp = access.readLock();
+		try
+		{
+			checkReleased();
+			IntBuffer target = pixels.duplicate();
+			target.position(index);
+			target.put(source, offset, length);
+		}
+		finally
+		{
+			access.unlockRead(stamp);
+		}
+	}
+
+	int getSlot()
+	{
+		return slot;
+	}
+
+	/**
+	 * <p>
+	 * Marks buffer as released, after writes in progress are done.
+	 * </p>
+	 */
+	void release()
+	{
+		long stamp = access.writeLock();
+		isReleased = true;
+		access.unlockWrite(stamp);
+	}
+
+	private void checkReleased()
+	{
+		if (isReleased)
+			throw new IllegalStateException(
+					"Image memory has already been released");
+	}
+
+	/**
+	 * <p>
+	 * Fails if buffer was released since stamp was taken, in which case pixels
+	 * just read may belong to another image.
+	 * </p>
+	 */
+	private void checkUnchanged(long stamp)
+	{
+		if (!access.validate(stamp))
+			throw new IllegalStateException(
+					"Image memory was released while being read");
+	}
+}
@@ -0,0 +1,57 @@
+package imageutils;
+
+import imageutils.ImageEffect.ShapeRectangle;
+
+/**
+ * <p>
+ * Outer contour of single object found on binarized image, together with its
+ * bounding box and centroid.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class Contour
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	public int[] pointsX, pointsY;
+	public int minX, minY, maxX, maxY;
+	public int centerX, centerY;
+	public int area;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Returns number of points on contour.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getLength()
+	{
+		return pointsX.length;
+	}
+
+	/**
+	 * <p>
+	 * Returns rectangle describing area occupied by object. Rectangle sides are
+	 * equal to object's bounding box dimensions.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public ShapeRectangle toShapeRectangle()
+	{
+		ShapeRectangle rectangle = new ShapeRectangle();
+		rectangle.centerX = centerX;
+		rectangle.centerY = centerY;
+		rectangle.sideX = maxX - minX + 1;
+		rectangle.sideY = maxY - minY + 1;
+
+		return rectangle;
+	}
+}
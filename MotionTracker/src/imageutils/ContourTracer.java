@@ -0,0 +1,261 @@
+package imageutils;
+
+import image.Image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Border following algorithm by Suzuki and Abe ("Topological Structural
+ * Analysis of Digitized Binary Images by Border Following", 1985). Single
+ * raster scan traces outer and hole borders of 8-connected objects and, at the
+ * same time, assigns every object pixel to its object, so bounding boxes and
+ * centroids are known without flood filling.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+class ContourTracer
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	/* Neighbours in clockwise order, starting from east (y axis points down) */
+	private static final int[] DIRECTION_X = { 1, 1, 0, -1, -1, -1, 0, 1 };
+	private static final int[] DIRECTION_Y = { 0, 1, 1, 1, 0, -1, -1, -1 };
+
+	private final int width, height, stride;
+	private final int[] labels;
+	private final int[] offsets = new int[8];
+
+	/* Per border data, indexed by border number */
+	private int[] componentOfBorder = new int[64];
+
+	/* Per object data, indexed by component number */
+	private final List<Contour> contours = new ArrayList<>();
+	private long[] sumX = new long[16], sumY = new long[16];
+	private int[] areas = new int[16];
+
+	/* Contour points of currently traced outer border */
+	private int[] traceX = new int[256], traceY = new int[256];
+	private int traceLength;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Returns outer contours of all objects found on binarized image. Pixel
+	 * belongs to object if its red channel equals shapeChannelValue.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param shapeChannelValue
+	 * @return
+	 */
+	static List<Contour> trace(Image img, int shapeChannelValue)
+	{
+		ContourTracer tracer = new ContourTracer(img.getWidth(),
+				img.getHeight());
+		int[] row = new int[tracer.width];
+
+		for (int y = 0; y < tracer.height; y++)
+		{
+			img.getRow(y, row);
+			for (int x = 0; x < tracer.width; x++)
+				if (((row[x] >> 16) & 0xFF) == shapeChannelValue)
+					tracer.labels[(y + 1) * tracer.stride + x + 1] = 1;
+		}
+
+		return tracer.scan();
+	}
+
+	private ContourTracer(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		// One pixel wide background frame spares bounds checks while tracing
+		stride = width + 2;
+		labels = new int[stride * (height + 2)];
+
+		for (int d = 0; d < 8; d++)
+			offsets[d] = DIRECTION_Y[d] * stride + DIRECTION_X[d];
+	}
+
+	private List<Contour> scan()
+	{
+		int borderNumber = 1;
+
+		for (int y = 1; y <= height; y++)
+		{
+			int lastBorder = 1;
+
+			for (int x = 1; x <= width; x++)
+			{
+				int p = y * stride + x;
+				int value = labels[p];
+				if (value == 0) continue;
+
+				if (value == 1 && labels[p - 1] == 0)
+				{
+					/* Outer border of new object */
+					borderNumber = nextBorder(borderNumber);
+					componentOfBorder[borderNumber] = newComponent();
+					followBorder(p, p - 1, borderNumber, true);
+					finishContour(componentOfBorder[borderNumber]);
+				}
+				else if (value >= 1 && labels[p + 1] == 0)
+				{
+					/* Hole border, it belongs to the object surrounding it */
+					if (value > 1) lastBorder = value;
+					borderNumber = nextBorder(borderNumber);
+					componentOfBorder[borderNumber] = componentOfBorder[lastBorder];
+					followBorder(p, p + 1, borderNumber, false);
+				}
+
+				value = labels[p];
+				if (value != 1) lastBorder = Math.abs(value);
+
+				int component = componentOfBorder[lastBorder];
+				sumX[component] += x - 1;
+				sumY[component] += y - 1;
+				areas[component]++;
+			}
+		}
+
+		for (int i = 0; i < contours.size(); i++)
+		{
+			Contour contour = contours.get(i);
+			contour.area = areas[i];
+			contour.centerX = (int) (sumX[i] / areas[i]);
+			contour.centerY = (int) (sumY[i] / areas[i]);
+		}
+
+		return contours;
+	}
+
+	private int nextBorder(int borderNumber)
+	{
+		borderNumber++;
+		if (borderNumber == componentOfBorder.length)
+			componentOfBorder = Arrays.copyOf(componentOfBorder,
+					2 * borderNumber);
+
+		return borderNumber;
+	}
+
+	private int newComponent()
+	{
+		int component = contours.size();
+		contours.add(new Contour());
+
+		if (component == areas.length)
+		{
+			sumX = Arrays.copyOf(sumX, 2 * component);
+			sumY = Arrays.copyOf(sumY, 2 * component);
+			areas = Arrays.copyOf(areas, 2 * component);
+		}
+
+		return component;
+	}
+
+	private void followBorder(int start, int from, int borderNumber,
+			boolean isOuter)
+	{
+		traceLength = 0;
+
+		/* Step 3.1 - find first neighbour clockwise from starting one */
+		int direction = directionTo(start, from);
+		int first = -1;
+		for (int i = 0; i < 8; i++)
+		{
+			int d = (direction + i) & 7;
+			if (labels[start + offsets[d]] != 0)
+			{
+				first = start + offsets[d];
+				break;
+			}
+		}
+
+		if (first < 0)
+		{
+			/* Isolated pixel */
+			labels[start] = -borderNumber;
+			if (isOuter) addPoint(start);
+			return;
+		}
+
+		/* Steps 3.2 - 3.5 */
+		int previous = first;
+		int current = start;
+		while (true)
+		{
+			if (isOuter) addPoint(current);
+
+			int d = directionTo(current, previous);
+			boolean eastExamined = false;
+			int next = current;
+			for (int i = 0; i < 8; i++)
+			{
+				d = (d + 7) & 7;
+				int candidate = current + offsets[d];
+				if (labels[candidate] != 0)
+				{
+					next = candidate;
+					break;
+				}
+				if (d == 0) eastExamined = true;
+			}
+
+			if (eastExamined)
+				labels[current] = -borderNumber;
+			else if (labels[current] == 1) labels[current] = borderNumber;
+
+			if (next == start && current == first) break;
+			previous = current;
+			current = next;
+		}
+	}
+
+	private int directionTo(int from, int to)
+	{
+		int offset = to - from;
+		for (int d = 0; d < 8; d++)
+			if (offsets[d] == offset) return d;
+
+		throw new IllegalStateException("Pixels are not neighbours");
+	}
+
+	private void addPoint(int p)
+	{
+		if (traceLength == traceX.length)
+		{
+			traceX = Arrays.copyOf(traceX, 2 * traceLength);
+			traceY = Arrays.copyOf(traceY, 2 * traceLength);
+		}
+
+		traceX[traceLength] = p % stride - 1;
+		traceY[traceLength] = p / stride - 1;
+		traceLength++;
+	}
+
+	private void finishContour(int component)
+	{
+		Contour contour = contours.get(component);
+		contour.pointsX = Arrays.copyOf(traceX, traceLength);
+		contour.pointsY = Arrays.copyOf(traceY, traceLength);
+
+		contour.minX = contour.maxX = traceX[0];
+		contour.minY = contour.maxY = traceY[0];
+		for (int i = 1; i < traceLength; i++)
+		{
+			contour.minX = Math.min(contour.minX, traceX[i]);
+			contour.maxX = Math.max(contour.maxX, traceX[i]);
+			contour.minY = Math.min(contour.minY, traceY[i]);
+			contour.maxY = Math.max(contour.maxY, traceY[i]);
+		}
+	}
+}
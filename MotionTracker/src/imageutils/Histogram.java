@@ -0,0 +1,261 @@
+package imageutils;
+
+import image.Image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>
+ * 256-bin histogram of channel values together with automatic treshold
+ * selection methods. Histograms are computed in parallel - image is split into
+ * tiles of rows, every task counts its tile into private bins and bins are
+ * summed when tasks are joined.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class Histogram
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	public static final int BINS = 256;
+	private static final int ROWS_PER_TILE = 64;
+
+	private final int[] bins = new int[BINS];
+	private long total = 0;
+
+	/**
+	 * <p>
+	 * Work done for every tile of rows. Implementations count values of
+	 * processed pixels into provided bins, so histogram can be computed as
+	 * side effect of other per-pixel operation.
+	 * </p>
+	 * 
+	 * @author Piotr Waszkiewicz
+	 *
+	 */
+	interface RowProcessor
+	{
+		/**
+		 * <p>
+		 * Processes rows from firstRow (inclusive) to lastRow (exclusive),
+		 * counting values into bins.
+		 * </p>
+		 */
+		void processRows(int firstRow, int lastRow, int[] bins);
+	}
+
+	/**
+	 * <p>
+	 * Task splitting rows into tiles. Every tile is counted into its own bins,
+	 * bins are summed when tasks are joined.
+	 * </p>
+	 * 
+	 * @author Piotr Waszkiewicz
+	 *
+	 */
+	private static final class TileTask extends RecursiveTask<int[]>
+	{
+		private static final long serialVersionUID = 1L;
+		private final RowProcessor processor;
+		private final int firstRow, lastRow;
+
+		private TileTask(RowProcessor processor, int firstRow, int lastRow)
+		{
+			this.processor = processor;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		@Override
+		protected int[] compute()
+		{
+			if (lastRow - firstRow <= ROWS_PER_TILE)
+			{
+				int[] tileBins = new int[BINS];
+				processor.processRows(firstRow, lastRow, tileBins);
+				return tileBins;
+			}
+
+			int middle = (firstRow + lastRow) >>> 1;
+			TileTask upper = new TileTask(processor, firstRow, middle);
+			TileTask lower = new TileTask(processor, middle, lastRow);
+			upper.fork();
+			int[] tileBins = lower.compute();
+			int[] upperBins = upper.join();
+			for (int i = 0; i < BINS; i++)
+				tileBins[i] += upperBins[i];
+
+			return tileBins;
+		}
+	}
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Creates empty histogram.
+	 * </p>
+	 */
+	public Histogram()
+	{
+	}
+
+	/**
+	 * <p>
+	 * Returns histogram of red channel of given image.
+	 * </p>
+	 * 
+	 * @param img
+	 * @return
+	 */
+	public static Histogram of(Image img)
+	{
+		final int[] pixels = img.getPixels();
+		final int width = img.getWidth();
+		Histogram histogram = new Histogram();
+
+		histogram.accumulate(img.getHeight(), new RowProcessor()
+		{
+			@Override
+			public void processRows(int firstRow, int lastRow, int[] bins)
+			{
+				for (int i = firstRow * width; i < lastRow * width; i++)
+					bins[(pixels[i] >> 16) & 0xFF]++;
+			}
+		});
+
+		return histogram;
+	}
+
+	/**
+	 * <p>
+	 * Returns number of values equal to given one.
+	 * </p>
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public int getCount(int value)
+	{
+		return bins[value];
+	}
+
+	/**
+	 * <p>
+	 * Returns number of all counted values.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public long getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * <p>
+	 * Returns treshold chosen with Otsu method, which maximizes variance
+	 * between values above and not above treshold.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getOtsuTreshold()
+	{
+		double sum = 0;
+		for (int i = 0; i < BINS; i++)
+			sum += (double) i * bins[i];
+
+		double sumBelow = 0, bestVariance = -1;
+		long countBelow = 0;
+		int treshold = 0;
+		for (int t = 0; t < BINS; t++)
+		{
+			countBelow += bins[t];
+			sumBelow += (double) t * bins[t];
+			long countAbove = total - countBelow;
+			if (countBelow == 0 || countAbove == 0) continue;
+
+			double meanDifference = sumBelow / countBelow - (sum - sumBelow)
+					/ countAbove;
+			double variance = (double) countBelow * countAbove
+					* meanDifference * meanDifference;
+			if (variance > bestVariance)
+			{
+				bestVariance = variance;
+				treshold = t;
+			}
+		}
+
+		return treshold;
+	}
+
+	/**
+	 * <p>
+	 * Returns treshold chosen with triangle method. Line is drawn from
+	 * histogram peak to the furthest non-empty bin and treshold is placed at
+	 * bin furthest from that line. Works well for histograms with single
+	 * dominant peak, like those of differences between frames.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getTriangleTreshold()
+	{
+		int peak = 0, first = -1, last = -1;
+		for (int i = 0; i < BINS; i++)
+		{
+			if (bins[i] > bins[peak]) peak = i;
+			if (bins[i] > 0)
+			{
+				if (first < 0) first = i;
+				last = i;
+			}
+		}
+		if (first < 0) return 0;
+
+		/* Tail is on the side further from the peak */
+		int end = (last - peak >= peak - first) ? last : first;
+		if (end == peak) return peak;
+
+		int direction = end > peak ? 1 : -1;
+		double dx = end - peak, dy = bins[end] - bins[peak];
+		double bestDistance = -1;
+		int treshold = peak;
+		for (int i = peak; i != end; i += direction)
+		{
+			// Distance to line without constant normalisation factor
+			double distance = Math.abs(dy * (i - peak) - dx
+					* (bins[i] - bins[peak]));
+			if (distance > bestDistance)
+			{
+				bestDistance = distance;
+				treshold = i;
+			}
+		}
+
+		return direction > 0 ? treshold : treshold - 1;
+	}
+
+	/**
+	 * <p>
+	 * Runs processor over given number of rows in parallel and adds counted
+	 * values to this histogram.
+	 * </p>
+	 */
+	void accumulate(int rows, RowProcessor processor)
+	{
+		int[] counted = ForkJoinPool.commonPool().invoke(
+				new TileTask(processor, 0, rows));
+		for (int i = 0; i < BINS; i++)
+		{
+			bins[i] += counted[i];
+			total += counted[i];
+		}
+	}
+}
@@ -3,6 +3,8 @@ package imageutils;
 import image.Image;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -27,6 +29,56 @@ public class ImageEffect
 		public boolean hasRectangleBeenUsed = false;
 	}
 
+	/**
+	 * <p>
+	 * Single erosion or dilatation, to be chained with others in
+	 * {@link ImageEffect#morphology}.
+	 * </p>
+	 */
+	public static final class MorphologyOperation
+	{
+		final boolean isDilatation;
+		final int maskSize;
+
+		private MorphologyOperation(boolean isDilatation, int maskSize)
+		{
+			if (maskSize < 1)
+				throw new IllegalArgumentException("Mask size must be above 1");
+			if (maskSize % 2 == 0)
+				throw new IllegalArgumentException(
+						"Mask size must be an odd number");
+
+			this.isDilatation = isDilatation;
+			this.maskSize = maskSize;
+		}
+
+		/**
+		 * <p>
+		 * Returns erosion with square mask of given size.
+		 * </p>
+		 * 
+		 * @param maskSize
+		 * @return
+		 */
+		public static MorphologyOperation erosion(int maskSize)
+		{
+			return new MorphologyOperation(false, maskSize);
+		}
+
+		/**
+		 * <p>
+		 * Returns dilatation with square mask of given size.
+		 * </p>
+		 * 
+		 * @param maskSize
+		 * @return
+		 */
+		public static MorphologyOperation dilatation(int maskSize)
+		{
+			return new MorphologyOperation(true, maskSize);
+		}
+	}
+
 	/***************/
 	/* METHODS */
 	/***************/
@@ -121,6 +173,32 @@ public class ImageEffect
 		return result;
 	}
 
+	/**
+	 * <p>
+	 * Puts image under given erosions and dilatations, in given order, in
+	 * single pass over image. Result is the same as of calling
+	 * {@link #erosion} and {@link #dilatation} one after another, but no
+	 * intermediate image is made and only few rows per operation are kept in
+	 * memory. Image must be in binarized form.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param shapeChannelValue
+	 * @param backgroundChannelValue
+	 * @param operations
+	 * @return
+	 */
+	public static Image morphology(Image img, int shapeChannelValue,
+			int backgroundChannelValue, MorphologyOperation... operations)
+	{
+		if (operations.length == 0)
+			throw new IllegalArgumentException(
+					"At least one operation must be given");
+
+		return MorphologySweep.apply(img, shapeChannelValue,
+				backgroundChannelValue, operations);
+	}
+
 	/**
 	 * <p>
 	 * Binarizes picture - converts it to two color only.
@@ -141,19 +219,40 @@ public class ImageEffect
 					"Both channel values must be between 0 and 255");
 
 		Image result = new Image(img.getWidth(), img.getHeight());
-
-		for (int w = 0; w < img.getWidth(); w++)
-			for (int h = 0; h < img.getHeight(); h++)
-				if (img.getRed(w, h) > treshold)
-					result.setRGB(w, h, shapeChannelValue, shapeChannelValue,
-							shapeChannelValue);
-				else
-					result.setRGB(w, h, backgroundChannelValue,
-							backgroundChannelValue, backgroundChannelValue);
+		int shapeColor = new Color(shapeChannelValue, shapeChannelValue,
+				shapeChannelValue).getRGB();
+		int backgroundColor = new Color(backgroundChannelValue,
+				backgroundChannelValue, backgroundChannelValue).getRGB();
+		int[] row = new int[img.getWidth()];
+
+		for (int h = 0; h < img.getHeight(); h++)
+		{
+			img.getRow(h, row);
+			for (int w = 0; w < row.length; w++)
+				row[w] = ((row[w] >> 16) & 0xFF) > treshold ? shapeColor
+						: backgroundColor;
+			result.setRow(h, row);
+		}
 
 		return result;
 	}
 
+	/**
+	 * <p>
+	 * Binarizes picture directly into run-length encoded mask. Pixels with red
+	 * channel above treshold become part of shape.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param treshold
+	 * @return
+	 */
+	public static RunLengthMask binarizeToRunLengthMask(Image img,
+			int treshold)
+	{
+		return RunLengthMask.fromRedChannel(img, treshold + 1, 255);
+	}
+
 	/**
 	 * <p>
 	 * Returns image binarized using Saurola method. Source image must be in
@@ -238,6 +337,60 @@ public class ImageEffect
 		return result;
 	}
 
+	/**
+	 * <p>
+	 * Subtracts two images in parallel and returns the result. Values of red
+	 * channel of the result are counted into provided histogram in the same
+	 * pass, so no separate pass over the image is needed to get them.
+	 * </p>
+	 * 
+	 * @param img1
+	 * @param img2
+	 * @param histogram
+	 * @return
+	 */
+	public static Image subtractImages(final Image img1, final Image img2,
+			Histogram histogram)
+	{
+		if (img1.getWidth() != img2.getWidth()
+				|| img1.getHeight() != img2.getHeight())
+			throw new IllegalArgumentException(
+					"Both images should have the same resolution");
+
+		final int width = img1.getWidth();
+		final Image result = new Image(width, img1.getHeight());
+
+		histogram.accumulate(img1.getHeight(), new Histogram.RowProcessor()
+		{
+			@Override
+			public void processRows(int firstRow, int lastRow, int[] bins)
+			{
+				/* Tile reads into its own buffers and sets its own rows */
+				int[] row1 = new int[width], row2 = new int[width];
+				for (int y = firstRow; y < lastRow; y++)
+				{
+					img1.getRow(y, row1);
+					img2.getRow(y, row2);
+					for (int x = 0; x < width; x++)
+					{
+						int red = Math.abs(((row1[x] >> 16) & 0xFF)
+								- ((row2[x] >> 16) & 0xFF));
+						int green = Math.abs(((row1[x] >> 8) & 0xFF)
+								- ((row2[x] >> 8) & 0xFF));
+						int blue = Math.abs((row1[x] & 0xFF)
+								- (row2[x] & 0xFF));
+						row1[x] = 0xFF000000 | (red << 16) | (green << 8)
+								| blue;
+						bins[red]++;
+					}
+					result.setRow(y, row1);
+				}
+			}
+		});
+
+		return result;
+	}
+
 	/**
 	 * <p>
 	 * Returns grayscaled image of provided one.
@@ -248,15 +401,102 @@ public class ImageEffect
 	 */
 	public static Image getGrayscale(Image img)
 	{
+		if (img.isGrayscale()) return img.getCopy();
+
 		Image result = new Image(img.getWidth(), img.getHeight());
+		int[] row = new int[img.getWidth()];
 
-		for (int w = 0; w < img.getWidth(); w++)
-			for (int h = 0; h < img.getHeight(); h++)
+		for (int h = 0; h < img.getHeight(); h++)
+		{
+			img.getRow(h, row);
+			for (int w = 0; w < row.length; w++)
 			{
-				int gray = (img.getRed(w, h) + img.getGreen(w, h) + img
-						.getBlue(w, h)) / 3;
-				result.setRGB(w, h, gray, gray, gray);
+				int gray = (((row[w] >> 16) & 0xFF) + ((row[w] >> 8) & 0xFF)
+						+ (row[w] & 0xFF)) / 3;
+				row[w] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
 			}
+			result.setRow(h, row);
+		}
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Returns median filtered image. Source image must be in grayscale,
+	 * otherwise results are undefined. Cost per pixel does not depend on
+	 * radius.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param radius
+	 * @return
+	 */
+	public static Image medianFilter(Image img, int radius)
+	{
+		if (radius < 0)
+			throw new IllegalArgumentException("Radius must not be negative");
+
+		return MedianFilter.median(img, radius);
+	}
+
+	/**
+	 * <p>
+	 * Returns binarized image in which every pixel takes value of majority of
+	 * pixels in its neighbourhood. Removes noise like opening and closing do,
+	 * but does not change shape of larger objects. Cost per pixel does not
+	 * depend on radius.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param shapeChannelValue
+	 * @param backgroundChannelValue
+	 * @param radius
+	 * @return
+	 */
+	public static Image majorityFilter(Image img, int shapeChannelValue,
+			int backgroundChannelValue, int radius)
+	{
+		if (radius < 0)
+			throw new IllegalArgumentException("Radius must not be negative");
+
+		int[] pixels = img.getPixels();
+		boolean[] mask = new boolean[pixels.length];
+		for (int i = 0; i < pixels.length; i++)
+			mask[i] = ((pixels[i] >> 16) & 0xFF) == shapeChannelValue;
+
+		mask = MedianFilter.majority(mask, img.getWidth(), img.getHeight(),
+				radius);
+		int shapeColor = new Color(shapeChannelValue, shapeChannelValue,
+				shapeChannelValue).getRGB();
+		int backgroundColor = new Color(backgroundChannelValue,
+				backgroundChannelValue, backgroundChannelValue).getRGB();
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = mask[i] ? shapeColor : backgroundColor;
+
+		Image result = new Image(img.getWidth(), img.getHeight());
+		result.setPixels(pixels);
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Returns image scaled to given resolution.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static Image resize(Image img, int width, int height)
+	{
+		Image result = new Image(width, height);
+		Graphics2D g = (Graphics2D) result.getGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		img.drawOn(g, 0, 0, width, height);
+		g.dispose();
 
 		return result;
 	}
@@ -279,27 +519,36 @@ public class ImageEffect
 			throw new IllegalArgumentException(
 					"Both images should have the same resolution");
 		Image result = new Image(source.getWidth(), source.getHeight());
-
-		for (int w = 0; w < source.getWidth(); w++)
-			for (int h = 0; h < source.getHeight(); h++)
+		int[] sourceRow = new int[source.getWidth()];
+		int[] destinationRow = new int[source.getWidth()];
+
+		for (int h = 0; h < source.getHeight(); h++)
+		{
+			source.getRow(h, sourceRow);
+			destination.getRow(h, destinationRow);
+			for (int w = 0; w < sourceRow.length; w++)
 			{
-				int red = (source.getRed(w, h) + Math.min(Math.abs(destination
-						.getRed(w, h) - source.getRed(w, h)), step)
-						* (int) Math.signum(destination.getRed(w, h)
-								- source.getRed(w, h)));
-				int green = (source.getGreen(w, h) + Math.min(
-						Math.abs(destination.getRed(w, h)
-								- source.getGreen(w, h)), step)
-						* (int) Math.signum(destination.getGreen(w, h)
-								- source.getGreen(w, h)));
-				int blue = (source.getBlue(w, h) + Math.min(
-						Math.abs(destination.getBlue(w, h)
-								- source.getBlue(w, h)), step)
-						* (int) Math.signum(destination.getRed(w, h)
-								- source.getBlue(w, h)));
-
-				result.setRGB(w, h, red, green, blue);
+				int sourceRed = (sourceRow[w] >> 16) & 0xFF;
+				int sourceGreen = (sourceRow[w] >> 8) & 0xFF;
+				int sourceBlue = sourceRow[w] & 0xFF;
+				int destinationRed = (destinationRow[w] >> 16) & 0xFF;
+				int destinationGreen = (destinationRow[w] >> 8) & 0xFF;
+				int destinationBlue = destinationRow[w] & 0xFF;
+
+				int red = (sourceRed + Math.min(Math.abs(destinationRed
+						- sourceRed), step)
+						* Integer.signum(destinationRed - sourceRed));
+				int green = (sourceGreen + Math.min(Math.abs(destinationRed
+						- sourceGreen), step)
+						* Integer.signum(destinationGreen - sourceGreen));
+				int blue = (sourceBlue + Math.min(Math.abs(destinationBlue
+						- sourceBlue), step)
+						* Integer.signum(destinationRed - sourceBlue));
+
+				sourceRow[w] = toOpaqueColor(red, green, blue);
 			}
+			result.setRow(h, sourceRow);
+		}
 
 		return result;
 	}
@@ -338,23 +587,94 @@ public class ImageEffect
 	 * </p>
 	 * 
 	 * @param img
+	 * @param boundColor
+	 * @param backgroundColor
+	 *            not used, visited pixels are no longer erased with it
 	 * @return
+	 * @deprecated use {@link #getObjectAreas(Image, int)}
 	 */
+	@Deprecated
 	public static List<ShapeRectangle> getObjectAreas(Image img,
 			int boundColor, int backgroundColor)
 	{
-		Image copyImg = img.getCopy();
+		return getObjectAreas(img, boundColor);
+	}
+
+	/**
+	 * <p>
+	 * Returns list of rectangles within which detected shape are placed.
+	 * Image is left unchanged.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param boundColor
+	 * @return
+	 */
+	public static List<ShapeRectangle> getObjectAreas(Image img,
+			int boundColor)
+	{
+		/* Visited pixels are marked here instead of erased on a copy */
+		boolean[] isVisited = new boolean[img.getWidth() * img.getHeight()];
 		List<ShapeRectangle> rectangles = new ArrayList<>();
 
 		for (int w = 0; w < img.getWidth(); w++)
 			for (int h = 0; h < img.getHeight(); h++)
-				if (copyImg.getRGB(w, h) == boundColor)
-					rectangles.add(getRectangleForShape(copyImg, w, h,
-							backgroundColor));
+				if (!isVisited[h * img.getWidth() + w]
+						&& img.getRGB(w, h) == boundColor)
+					rectangles.add(getRectangleForShape(img, w, h, isVisited));
 
 		return rectangles;
 	}
 
+	/**
+	 * <p>
+	 * Returns outer contours of objects on binarized image, found in single
+	 * border following pass. Each contour knows its object's bounding box and
+	 * centroid, so neither borders nor flood fill are needed to obtain them.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param shapeChannelValue
+	 * @return
+	 */
+	public static List<Contour> getObjectContours(Image img,
+			int shapeChannelValue)
+	{
+		return ContourTracer.trace(img, shapeChannelValue);
+	}
+
+	/**
+	 * <p>
+	 * Draws provided contours on image with given color.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param contours
+	 * @param color
+	 */
+	public static void drawContours(Image img, List<Contour> contours,
+			int color)
+	{
+		for (Contour c : contours)
+			for (int i = 0; i < c.getLength(); i++)
+				img.setRGB(c.pointsX[i], c.pointsY[i], color);
+	}
+
+	/**
+	 * <p>
+	 * Returns RGB value of opaque color, checking channels as {@link Color}
+	 * does, but without creating color object for every pixel.
+	 * </p>
+	 */
+	private static int toOpaqueColor(int red, int green, int blue)
+	{
+		if (((red | green | blue) & ~0xFF) != 0)
+			throw new IllegalArgumentException(
+					"Color parameter outside of expected range");
+
+		return 0xFF000000 | (red << 16) | (green << 8) | blue;
+	}
+
 	private ImageEffect()
 	{
 		// This class should serve as "final abstract" class
@@ -362,13 +682,13 @@ public class ImageEffect
 	}
 
 	private static ShapeRectangle getRectangleForShape(Image img, int x, int y,
-			int backgroundColor)
+			boolean[] isVisited)
 	{
 		int shapeColor = img.getRGB(x, y);
 		List<Integer> pointsX = new ArrayList<>();
 		List<Integer> pointsY = new ArrayList<>();
 
-		getShapePoints(img, x, y, shapeColor, backgroundColor, pointsX, pointsY);
+		getShapePoints(img, x, y, shapeColor, isVisited, pointsX, pointsY);
 
 		Integer[][] points = new Integer[2][];
 		points[0] = pointsX.toArray(new Integer[pointsX.size()]);
@@ -378,49 +698,59 @@ public class ImageEffect
 	}
 
 	private static void getShapePoints(Image img, int x, int y, int shapeColor,
-			int backgroundColor, List<Integer> pointsX, List<Integer> pointsY)
+			boolean[] isVisited, List<Integer> pointsX, List<Integer> pointsY)
 	{
 		pointsX.add(x);
 		pointsY.add(y);
-		img.setRGB(x, y, backgroundColor);
+		isVisited[y * img.getWidth() + x] = true;
 
 		// Left
-		if (x > 0 && img.getRGB(x - 1, y) == shapeColor)
-			getShapePoints(img, x - 1, y, shapeColor, backgroundColor, pointsX,
+		if (x > 0 && isShape(img, x - 1, y, shapeColor, isVisited))
+			getShapePoints(img, x - 1, y, shapeColor, isVisited, pointsX,
 					pointsY);
 		// Left top
-		if (x > 0 && y > 0 && img.getRGB(x - 1, y - 1) == shapeColor)
-			getShapePoints(img, x - 1, y - 1, shapeColor, backgroundColor,
+		if (x > 0 && y > 0
+				&& isShape(img, x - 1, y - 1, shapeColor, isVisited))
+			getShapePoints(img, x - 1, y - 1, shapeColor, isVisited,
 					pointsX, pointsY);
 		// Top
-		if (y > 0 && img.getRGB(x, y - 1) == shapeColor)
-			getShapePoints(img, x, y - 1, shapeColor, backgroundColor, pointsX,
+		if (y > 0 && isShape(img, x, y - 1, shapeColor, isVisited))
+			getShapePoints(img, x, y - 1, shapeColor, isVisited, pointsX,
 					pointsY);
 		// Right top
 		if (x < img.getWidth() - 1 && y > 0
-				&& img.getRGB(x + 1, y - 1) == shapeColor)
-			getShapePoints(img, x + 1, y - 1, shapeColor, backgroundColor,
+				&& isShape(img, x + 1, y - 1, shapeColor, isVisited))
+			getShapePoints(img, x + 1, y - 1, shapeColor, isVisited,
 					pointsX, pointsY);
 		// Right
-		if (x < img.getWidth() - 1 && img.getRGB(x + 1, y) == shapeColor)
-			getShapePoints(img, x + 1, y, shapeColor, backgroundColor, pointsX,
+		if (x < img.getWidth() - 1
+				&& isShape(img, x + 1, y, shapeColor, isVisited))
+			getShapePoints(img, x + 1, y, shapeColor, isVisited, pointsX,
 					pointsY);
 		// Right down
-		if (x < img.getWidth() - 1 && y < img.getWidth() - 1
-				&& img.getRGB(x + 1, y + 1) == shapeColor)
-			getShapePoints(img, x + 1, y + 1, shapeColor, backgroundColor,
+		if (x < img.getWidth() - 1 && y < img.getHeight() - 1
+				&& isShape(img, x + 1, y + 1, shapeColor, isVisited))
+			getShapePoints(img, x + 1, y + 1, shapeColor, isVisited,
 					pointsX, pointsY);
 		// Down
-		if (y < img.getWidth() - 1 && img.getRGB(x, y + 1) == shapeColor)
-			getShapePoints(img, x, y + 1, shapeColor, backgroundColor, pointsX,
+		if (y < img.getHeight() - 1
+				&& isShape(img, x, y + 1, shapeColor, isVisited))
+			getShapePoints(img, x, y + 1, shapeColor, isVisited, pointsX,
 					pointsY);
 		// Left down
-		if (x > 0 && y < img.getWidth() - 1
-				&& img.getRGB(x - 1, y + 1) == shapeColor)
-			getShapePoints(img, x - 1, y + 1, shapeColor, backgroundColor,
+		if (x > 0 && y < img.getHeight() - 1
+				&& isShape(img, x - 1, y + 1, shapeColor, isVisited))
+			getShapePoints(img, x - 1, y + 1, shapeColor, isVisited,
 					pointsX, pointsY);
 	}
 
+	private static boolean isShape(Image img, int x, int y, int shapeColor,
+			boolean[] isVisited)
+	{
+		return !isVisited[y * img.getWidth() + x]
+				&& img.getRGB(x, y) == shapeColor;
+	}
+
 	private static ShapeRectangle createRectangleForPoints(Integer[][] points)
 	{
 		ShapeRectangle rectangle = new ShapeRectangle();
@@ -0,0 +1,226 @@
+package imageutils;
+
+import image.Image;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Median filter with constant cost per pixel, described by Perreault and
+ * Hebert ("Median Filtering in Constant Time", 2007). Every image column keeps
+ * histogram of pixels in current row window and kernel histogram is updated by
+ * adding one column histogram and removing another one when kernel moves right.
+ * Histograms are split into 16 coarse and 256 fine bins, fine part of kernel
+ * histogram is brought up to date only for coarse bin holding the median.
+ * </p>
+ * <p>
+ * Pixels outside of image are treated as copies of the nearest edge pixel.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+class MedianFilter
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int FINE_BINS = 256;
+	private static final int COARSE_BINS = 16;
+	private static final int COARSE_SHIFT = 4;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Returns median filtered image, taking values from red channel. Values of
+	 * source rows are kept only while they are in the window, so apart from
+	 * the result only buffers as long as a row are allocated.
+	 * </p>
+	 */
+	static Image median(Image img, int radius)
+	{
+		int width = img.getWidth(), height = img.getHeight();
+		int size = 2 * radius + 1;
+		int rank = size * size / 2;
+		int[] columnCoarse = new int[width * COARSE_BINS];
+		int[] columnFine = new int[width * FINE_BINS];
+		int[] kernelCoarse = new int[COARSE_BINS];
+		int[] kernelFine = new int[FINE_BINS];
+		int[] lastUpdate = new int[COARSE_BINS];
+		/* Rows from the one leaving the window to the one entering it */
+		int[][] window = new int[Math.min(height, size + 1)][width];
+		int[] output = new int[width];
+		Image result = new Image(width, height);
+
+		for (int j = 0; j <= Math.min(radius, height - 1); j++)
+			readRow(img, j, window);
+		for (int x = 0; x < width; x++)
+			for (int j = -radius; j <= radius; j++)
+				addToColumn(columnCoarse, columnFine, x,
+						window[clamp(j, height) % window.length][x], 1);
+
+		for (int y = 0; y < height; y++)
+		{
+			if (y > 0)
+			{
+				if (y + radius < height) readRow(img, y + radius, window);
+				int[] leaving = window[clamp(y - radius - 1, height)
+						% window.length];
+				int[] entering = window[clamp(y + radius, height)
+						% window.length];
+				for (int x = 0; x < width; x++)
+				{
+					addToColumn(columnCoarse, columnFine, x, leaving[x], -1);
+					addToColumn(columnCoarse, columnFine, x, entering[x], 1);
+				}
+			}
+
+			Arrays.fill(kernelCoarse, 0);
+			for (int c = -radius; c <= radius; c++)
+				addColumn(kernelCoarse, 0, columnCoarse, clamp(c, width)
+						* COARSE_BINS, COARSE_BINS, 1);
+			// Fine bins are stale at row start, force their recomputation
+			Arrays.fill(lastUpdate, Integer.MIN_VALUE / 2);
+
+			for (int x = 0; x < width; x++)
+			{
+				if (x > 0)
+				{
+					addColumn(kernelCoarse, 0, columnCoarse,
+							clamp(x - radius - 1, width) * COARSE_BINS,
+							COARSE_BINS, -1);
+					addColumn(kernelCoarse, 0, columnCoarse,
+							clamp(x + radius, width) * COARSE_BINS,
+							COARSE_BINS, 1);
+				}
+
+				int count = 0, coarse = 0;
+				while (count + kernelCoarse[coarse] <= rank)
+					count += kernelCoarse[coarse++];
+
+				updateFineBins(kernelFine, columnFine, coarse,
+						lastUpdate[coarse], x, radius, width);
+				lastUpdate[coarse] = x;
+
+				int fine = coarse << COARSE_SHIFT;
+				while (count + kernelFine[fine] <= rank)
+					count += kernelFine[fine++];
+
+				output[x] = 0xFF000000 | (fine << 16) | (fine << 8) | fine;
+			}
+			result.setRow(y, output);
+		}
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Returns majority filtered binary mask - pixel is set if more than half of
+	 * pixels in its neighbourhood are set. This is median filter over two-bin
+	 * histograms.
+	 * </p>
+	 */
+	static boolean[] majority(boolean[] mask, int width, int height,
+			int radius)
+	{
+		int size = 2 * radius + 1;
+		int rank = size * size / 2;
+		int[] columnCount = new int[width];
+		boolean[] result = new boolean[width * height];
+
+		for (int x = 0; x < width; x++)
+			for (int j = -radius; j <= radius; j++)
+				if (mask[clamp(j, height) * width + x]) columnCount[x]++;
+
+		for (int y = 0; y < height; y++)
+		{
+			if (y > 0) for (int x = 0; x < width; x++)
+			{
+				if (mask[clamp(y - radius - 1, height) * width + x])
+					columnCount[x]--;
+				if (mask[clamp(y + radius, height) * width + x])
+					columnCount[x]++;
+			}
+
+			int count = 0;
+			for (int c = -radius; c <= radius; c++)
+				count += columnCount[clamp(c, width)];
+
+			for (int x = 0; x < width; x++)
+			{
+				if (x > 0)
+					count += columnCount[clamp(x + radius, width)]
+							- columnCount[clamp(x - radius - 1, width)];
+
+				result[y * width + x] = count > rank;
+			}
+		}
+
+		return result;
+	}
+
+	private MedianFilter()
+	{
+		// Only static methods are provided
+	}
+
+	private static void updateFineBins(int[] kernelFine, int[] columnFine,
+			int coarse, int lastUpdate, int x, int radius, int width)
+	{
+		int size = 2 * radius + 1;
+		int offset = coarse << COARSE_SHIFT;
+
+		if (x - lastUpdate > size)
+		{
+			/* Cheaper to sum the whole window again */
+			Arrays.fill(kernelFine, offset, offset + COARSE_BINS, 0);
+			for (int c = x - radius; c <= x + radius; c++)
+				addColumn(kernelFine, offset, columnFine, clamp(c, width)
+						* FINE_BINS + offset, COARSE_BINS, 1);
+		}
+		else
+			for (int p = lastUpdate + 1; p <= x; p++)
+			{
+				addColumn(kernelFine, offset, columnFine,
+						clamp(p - radius - 1, width) * FINE_BINS + offset,
+						COARSE_BINS, -1);
+				addColumn(kernelFine, offset, columnFine, clamp(p + radius,
+						width) * FINE_BINS + offset, COARSE_BINS, 1);
+			}
+	}
+
+	/**
+	 * <p>
+	 * Reads red channel of given row into its place in window.
+	 * </p>
+	 */
+	private static void readRow(Image img, int y, int[][] window)
+	{
+		int[] row = window[y % window.length];
+		img.getRow(y, row);
+		for (int x = 0; x < row.length; x++)
+			row[x] = (row[x] >> 16) & 0xFF;
+	}
+
+	private static void addToColumn(int[] columnCoarse, int[] columnFine,
+			int x, int value, int sign)
+	{
+		columnCoarse[x * COARSE_BINS + (value >> COARSE_SHIFT)] += sign;
+		columnFine[x * FINE_BINS + value] += sign;
+	}
+
+	private static void addColumn(int[] kernel, int kernelOffset,
+			int[] columns, int columnOffset, int length, int sign)
+	{
+		for (int i = 0; i < length; i++)
+			kernel[kernelOffset + i] += sign * columns[columnOffset + i];
+	}
+
+	private static int clamp(int index, int length)
+	{
+		return index < 0 ? 0 : (index >= length ? length - 1 : index);
+	}
+}
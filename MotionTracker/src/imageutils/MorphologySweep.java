@@ -0,0 +1,209 @@
+package imageutils;
+
+import image.Image;
+import imageutils.ImageEffect.MorphologyOperation;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Chain of erosions and dilatations done in single pass over image. Image is
+ * read row after row and every operation keeps only as many rows of its input
+ * as its mask is high, in ring buffer, already reduced along the row. As soon
+ * as the rows needed for next output row are there, operation combines them
+ * and hands the row to next operation. Intermediate images are thus never
+ * built and buffers of the whole chain stay in cache.
+ * </p>
+ * <p>
+ * Result is exactly the same as of {@link ImageEffect#erosion} and
+ * {@link ImageEffect#dilatation} done one after another, margins included:
+ * erosion leaves margin of mask radius as background and dilatation ignores
+ * shape pixels lying in that margin.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+class MorphologySweep
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private final int width, height, radius;
+	private final boolean isDilatation;
+	private final byte[][] window;
+	private final byte[] output;
+	private final MorphologySweep next;
+	private int received = 0, emitted = 0;
+
+	/* Used by the last operation only */
+	private Image result;
+	private int[] colors;
+	private int shapeColor, backgroundColor;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Returns image after given operations, done in given order.
+	 * </p>
+	 */
+	static Image apply(Image img, int shapeChannelValue,
+			int backgroundChannelValue, MorphologyOperation[] operations)
+	{
+		int width = img.getWidth(), height = img.getHeight();
+		MorphologySweep chain = null;
+		for (int i = operations.length - 1; i >= 0; i--)
+			chain = new MorphologySweep(width, height,
+					operations[i].isDilatation,
+					(operations[i].maskSize - 1) / 2, chain);
+
+		MorphologySweep last = chain;
+		while (last.next != null)
+			last = last.next;
+		last.result = new Image(width, height);
+		last.colors = new int[width];
+		last.shapeColor = new Color(shapeChannelValue, shapeChannelValue,
+				shapeChannelValue).getRGB();
+		last.backgroundColor = new Color(backgroundChannelValue,
+				backgroundChannelValue, backgroundChannelValue).getRGB();
+
+		int[] pixels = new int[width];
+		byte[] row = new byte[width];
+
+		/* Erosion looks for background pixels, dilatation for shape ones */
+		for (int y = 0; y < height; y++)
+		{
+			img.getRow(y, pixels);
+			for (int x = 0; x < width; x++)
+			{
+				int red = (pixels[x] >> 16) & 0xFF;
+				row[x] = (byte) ((chain.isDilatation ? red == shapeChannelValue
+						: red != backgroundChannelValue) ? 1 : 0);
+			}
+			chain.push(row);
+		}
+		chain.finish();
+
+		return last.result;
+	}
+
+	private MorphologySweep(int width, int height, boolean isDilatation,
+			int radius, MorphologySweep next)
+	{
+		this.width = width;
+		this.height = height;
+		this.isDilatation = isDilatation;
+		this.radius = radius;
+		this.next = next;
+		this.window = new byte[2 * radius + 1][width];
+		this.output = new byte[width];
+	}
+
+	private void push(byte[] row)
+	{
+		byte[] target = window[received % window.length];
+		if (isDilatation)
+			dilateRow(row, target, received);
+		else
+			erodeRow(row, target);
+		received++;
+
+		while (emitted < height && emitted + radius < received)
+			emit(emitted++);
+	}
+
+	private void finish()
+	{
+		while (emitted < height)
+			emit(emitted++);
+		if (next != null) next.finish();
+	}
+
+	/**
+	 * <p>
+	 * Marks pixels having shape pixel within radius in the row. Shape pixels
+	 * in margin, or in rows of margin, do not count.
+	 * </p>
+	 */
+	private void dilateRow(byte[] row, byte[] target, int y)
+	{
+		Arrays.fill(target, (byte) 0);
+		if (y < radius || y >= height - radius) return;
+
+		int count = 0;
+		for (int x = 0; x <= radius && x < width; x++)
+			count += marginless(row, x);
+		for (int x = 0; x < width; x++)
+		{
+			if (count > 0) target[x] = 1;
+			if (x - radius >= 0) count -= marginless(row, x - radius);
+			if (x + radius + 1 < width)
+				count += marginless(row, x + radius + 1);
+		}
+	}
+
+	private int marginless(byte[] row, int x)
+	{
+		return x >= radius && x < width - radius ? row[x] : 0;
+	}
+
+	/**
+	 * <p>
+	 * Marks pixels outside margin having only shape pixels within radius in
+	 * the row.
+	 * </p>
+	 */
+	private void erodeRow(byte[] row, byte[] target)
+	{
+		Arrays.fill(target, (byte) 0);
+		if (width <= 2 * radius) return;
+
+		int holes = 0;
+		for (int x = 0; x <= 2 * radius; x++)
+			if (row[x] == 0) holes++;
+		for (int x = radius; x < width - radius; x++)
+		{
+			if (holes == 0) target[x] = 1;
+			if (x + radius + 1 < width)
+			{
+				if (row[x + radius + 1] == 0) holes++;
+				if (row[x - radius] == 0) holes--;
+			}
+		}
+	}
+
+	private void emit(int y)
+	{
+		int from = Math.max(0, y - radius);
+		int to = Math.min(height - 1, y + radius);
+
+		if (!isDilatation && (y < radius || y >= height - radius))
+			Arrays.fill(output, (byte) 0);
+		else
+		{
+			System.arraycopy(window[from % window.length], 0, output, 0, width);
+			for (int j = from + 1; j <= to; j++)
+			{
+				byte[] source = window[j % window.length];
+				if (isDilatation)
+					for (int x = 0; x < width; x++)
+						output[x] |= source[x];
+				else
+					for (int x = 0; x < width; x++)
+						output[x] &= source[x];
+			}
+		}
+
+		if (next != null)
+			next.push(output);
+		else
+		{
+			for (int x = 0; x < width; x++)
+				colors[x] = output[x] != 0 ? shapeColor : backgroundColor;
+			result.setRow(y, colors);
+		}
+	}
+}
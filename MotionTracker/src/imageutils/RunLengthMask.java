@@ -0,0 +1,504 @@
+package imageutils;
+
+import image.Image;
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Binary mask stored as horizontal runs of shape pixels. Every run is kept as
+ * pair of its first and one-past-last x coordinate, runs in a row are sorted
+ * and disjoint. Morphology and labeling work on runs only, so their cost
+ * depends on number of runs rather than on image resolution.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class RunLengthMask
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private final int width, height;
+	/* Runs of row y are runs number rowStart[y] to rowStart[y + 1] - 1 */
+	private final int[] rowStart;
+	private final int[] runs;
+
+	/**
+	 * <p>
+	 * Helper used to build masks row after row.
+	 * </p>
+	 * 
+	 * @author Piotr Waszkiewicz
+	 *
+	 */
+	private static final class Builder
+	{
+		private final int width, height;
+		private final int[] rowStart;
+		private int[] runs = new int[64];
+		private int runCount = 0;
+		private int row = 0;
+
+		Builder(int width, int height)
+		{
+			if (width <= 0 || height <= 0)
+				throw new IllegalArgumentException(
+						"Dimensions must be positive!");
+
+			this.width = width;
+			this.height = height;
+			rowStart = new int[height + 1];
+		}
+
+		/**
+		 * <p>
+		 * Appends run to current row. Runs must be added in increasing order.
+		 * Touching runs are merged.
+		 * </p>
+		 */
+		void addRun(int start, int end)
+		{
+			if (runCount > rowStart[row] && runs[2 * runCount - 1] >= start)
+			{
+				runs[2 * runCount - 1] = Math.max(runs[2 * runCount - 1], end);
+				return;
+			}
+
+			if (2 * runCount == runs.length)
+				runs = Arrays.copyOf(runs, 2 * runs.length);
+			runs[2 * runCount] = start;
+			runs[2 * runCount + 1] = end;
+			runCount++;
+		}
+
+		/**
+		 * <p>
+		 * Finishes current row and moves to the next one.
+		 * </p>
+		 */
+		void endRow()
+		{
+			row++;
+			rowStart[row] = runCount;
+		}
+
+		RunLengthMask build()
+		{
+			while (row < height)
+				endRow();
+
+			return new RunLengthMask(width, height, rowStart, Arrays.copyOf(
+					runs, 2 * runCount));
+		}
+	}
+
+	/***************/
+	/* METHODS */
+	/***************/
+	private RunLengthMask(int width, int height, int[] rowStart, int[] runs)
+	{
+		this.width = width;
+		this.height = height;
+		this.rowStart = rowStart;
+		this.runs = runs;
+	}
+
+	/**
+	 * <p>
+	 * Creates mask from binarized image. Pixel belongs to shape if its red
+	 * channel equals shapeChannelValue.
+	 * </p>
+	 * 
+	 * @param img
+	 * @param shapeChannelValue
+	 * @return
+	 */
+	public static RunLengthMask fromImage(Image img, int shapeChannelValue)
+	{
+		return fromRedChannel(img, shapeChannelValue, shapeChannelValue);
+	}
+
+	/**
+	 * <p>
+	 * Creates mask of pixels whose red channel lies between lowest and highest
+	 * value (inclusive).
+	 * </p>
+	 */
+	static RunLengthMask fromRedChannel(Image img, int lowest, int highest)
+	{
+		int width = img.getWidth();
+		int[] pixels = new int[width];
+		Builder builder = new Builder(width, img.getHeight());
+
+		for (int y = 0; y < img.getHeight(); y++)
+		{
+			img.getRow(y, pixels);
+			int start = -1;
+			for (int x = 0; x < width; x++)
+			{
+				int red = (pixels[x] >> 16) & 0xFF;
+				boolean isShape = red >= lowest && red <= highest;
+				if (isShape && start < 0)
+					start = x;
+				else if (!isShape && start >= 0)
+				{
+					builder.addRun(start, x);
+					start = -1;
+				}
+			}
+			if (start >= 0) builder.addRun(start, width);
+			builder.endRow();
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * <p>
+	 * Returns width of mask.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * <p>
+	 * Returns height of mask.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * <p>
+	 * Returns total number of runs in mask.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getRunCount()
+	{
+		return runs.length / 2;
+	}
+
+	/**
+	 * <p>
+	 * Checks if pixel at given position belongs to shape.
+	 * </p>
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean isSet(int x, int y)
+	{
+		for (int i = rowStart[y]; i < rowStart[y + 1]; i++)
+			if (x >= runs[2 * i] && x < runs[2 * i + 1]) return true;
+
+		return false;
+	}
+
+	/**
+	 * <p>
+	 * Converts mask back to binarized image.
+	 * </p>
+	 * 
+	 * @param shapeChannelValue
+	 * @param backgroundChannelValue
+	 * @return
+	 */
+	public Image toImage(int shapeChannelValue, int backgroundChannelValue)
+	{
+		int shapeColor = new Color(shapeChannelValue, shapeChannelValue,
+				shapeChannelValue).getRGB();
+		Image result = new Image(width, height, new Color(
+				backgroundChannelValue, backgroundChannelValue,
+				backgroundChannelValue).getRGB());
+
+		for (int y = 0; y < height; y++)
+			for (int i = rowStart[y]; i < rowStart[y + 1]; i++)
+				for (int x = runs[2 * i]; x < runs[2 * i + 1]; x++)
+					result.setRGB(x, y, shapeColor);
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Puts mask under dilatation process with square structuring element.
+	 * Every run is widened by half of mask size, then each row becomes union of
+	 * neighbouring widened rows.
+	 * </p>
+	 * 
+	 * @param maskSize
+	 * @return
+	 */
+	public RunLengthMask dilatation(int maskSize)
+	{
+		checkMaskSize(maskSize);
+		int half = (maskSize - 1) / 2;
+		int[][] widened = new int[height][];
+
+		for (int y = 0; y < height; y++)
+		{
+			int[] row = new int[2 * (rowStart[y + 1] - rowStart[y])];
+			int length = 0;
+			for (int i = rowStart[y]; i < rowStart[y + 1]; i++)
+			{
+				int start = Math.max(0, runs[2 * i] - half);
+				int end = Math.min(width, runs[2 * i + 1] + half);
+				if (length > 0 && row[length - 1] >= start)
+					row[length - 1] = end;
+				else
+				{
+					row[length++] = start;
+					row[length++] = end;
+				}
+			}
+			widened[y] = Arrays.copyOf(row, length);
+		}
+
+		Builder builder = new Builder(width, height);
+		for (int y = 0; y < height; y++)
+		{
+			int[] row = new int[0];
+			for (int j = Math.max(0, y - half); j <= Math.min(height - 1, y
+					+ half); j++)
+				row = union(row, widened[j]);
+
+			for (int i = 0; i < row.length; i += 2)
+				builder.addRun(row[i], row[i + 1]);
+			builder.endRow();
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * <p>
+	 * Puts mask under erosion process with square structuring element. Every
+	 * run is narrowed by half of mask size, then each row becomes intersection
+	 * of neighbouring narrowed rows. Pixels outside of mask are treated as
+	 * background.
+	 * </p>
+	 * 
+	 * @param maskSize
+	 * @return
+	 */
+	public RunLengthMask erosion(int maskSize)
+	{
+		checkMaskSize(maskSize);
+		int half = (maskSize - 1) / 2;
+		int[][] narrowed = new int[height][];
+
+		for (int y = 0; y < height; y++)
+		{
+			int[] row = new int[2 * (rowStart[y + 1] - rowStart[y])];
+			int length = 0;
+			for (int i = rowStart[y]; i < rowStart[y + 1]; i++)
+			{
+				int start = runs[2 * i] + half;
+				int end = runs[2 * i + 1] - half;
+				if (start < end)
+				{
+					row[length++] = start;
+					row[length++] = end;
+				}
+			}
+			narrowed[y] = Arrays.copyOf(row, length);
+		}
+
+		Builder builder = new Builder(width, height);
+		for (int y = 0; y < height; y++)
+		{
+			if (y - half >= 0 && y + half < height)
+			{
+				int[] row = narrowed[y - half];
+				for (int j = y - half + 1; j <= y + half && row.length > 0; j++)
+					row = intersection(row, narrowed[j]);
+
+				for (int i = 0; i < row.length; i += 2)
+					builder.addRun(row[i], row[i + 1]);
+			}
+			builder.endRow();
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * <p>
+	 * Returns list of rectangles within which 8-connected shapes are placed.
+	 * Shapes are found by joining runs that overlap in adjacent rows.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public List<ShapeRectangle> getObjectAreas()
+	{
+		int runCount = getRunCount();
+		int[] parent = new int[runCount];
+		for (int i = 0; i < runCount; i++)
+			parent[i] = i;
+
+		for (int y = 1; y < height; y++)
+		{
+			int a = rowStart[y - 1], b = rowStart[y];
+			while (a < rowStart[y] && b < rowStart[y + 1])
+			{
+				// Runs touch diagonally too, hence non-strict comparisons
+				if (runs[2 * a] <= runs[2 * b + 1]
+						&& runs[2 * b] <= runs[2 * a + 1])
+					join(parent, a, b);
+
+				if (runs[2 * a + 1] < runs[2 * b + 1])
+					a++;
+				else
+					b++;
+			}
+		}
+
+		int[] component = new int[runCount];
+		List<long[]> statistics = new ArrayList<>();
+		for (int y = 0; y < height; y++)
+			for (int i = rowStart[y]; i < rowStart[y + 1]; i++)
+			{
+				int root = find(parent, i);
+				long[] s;
+				if (root == i)
+				{
+					component[i] = statistics.size();
+					/* minX, maxX, minY, maxY, sumX, sumY, area */
+					s = new long[] { Long.MAX_VALUE, -1, y, y, 0, 0, 0 };
+					statistics.add(s);
+				}
+				else
+				{
+					component[i] = component[root];
+					s = statistics.get(component[i]);
+				}
+
+				long start = runs[2 * i], end = runs[2 * i + 1];
+				s[0] = Math.min(s[0], start);
+				s[1] = Math.max(s[1], end - 1);
+				s[3] = y;
+				s[4] += (start + end - 1) * (end - start) / 2;
+				s[5] += y * (end - start);
+				s[6] += end - start;
+			}
+
+		List<ShapeRectangle> rectangles = new ArrayList<>(statistics.size());
+		for (long[] s : statistics)
+		{
+			ShapeRectangle rectangle = new ShapeRectangle();
+			rectangle.centerX = (int) (s[4] / s[6]);
+			rectangle.centerY = (int) (s[5] / s[6]);
+			rectangle.sideX = (int) (s[1] - s[0] + 1);
+			rectangle.sideY = (int) (s[3] - s[2] + 1);
+			rectangles.add(rectangle);
+		}
+
+		return rectangles;
+	}
+
+	private static void checkMaskSize(int maskSize)
+	{
+		if (maskSize < 1)
+			throw new IllegalArgumentException("Mask size must be above 1");
+		if (maskSize % 2 == 0)
+			throw new IllegalArgumentException(
+					"Mask size must be an odd number");
+	}
+
+	private static int[] union(int[] a, int[] b)
+	{
+		int[] result = new int[a.length + b.length];
+		int length = 0, i = 0, j = 0;
+
+		while (i < a.length || j < b.length)
+		{
+			int start, end;
+			if (j >= b.length || (i < a.length && a[i] <= b[j]))
+			{
+				start = a[i];
+				end = a[i + 1];
+				i += 2;
+			}
+			else
+			{
+				start = b[j];
+				end = b[j + 1];
+				j += 2;
+			}
+
+			if (length > 0 && result[length - 1] >= start)
+				result[length - 1] = Math.max(result[length - 1], end);
+			else
+			{
+				result[length++] = start;
+				result[length++] = end;
+			}
+		}
+
+		return Arrays.copyOf(result, length);
+	}
+
+	private static int[] intersection(int[] a, int[] b)
+	{
+		int[] result = new int[a.length + b.length];
+		int length = 0, i = 0, j = 0;
+
+		while (i < a.length && j < b.length)
+		{
+			int start = Math.max(a[i], b[j]);
+			int end = Math.min(a[i + 1], b[j + 1]);
+			if (start < end)
+			{
+				result[length++] = start;
+				result[length++] = end;
+			}
+
+			if (a[i + 1] < b[j + 1])
+				i += 2;
+			else
+				j += 2;
+		}
+
+		return Arrays.copyOf(result, length);
+	}
+
+	private static int find(int[] parent, int i)
+	{
+		while (parent[i] != i)
+		{
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+
+		return i;
+	}
+
+	private static void join(int[] parent, int a, int b)
+	{
+		int rootA = find(parent, a), rootB = find(parent, b);
+		// Keep the earliest run as root so objects come out in raster order
+		if (rootA < rootB)
+			parent[rootB] = rootA;
+		else
+			parent[rootA] = rootB;
+	}
+}
@@ -0,0 +1,329 @@
+package tracking;
+
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Persistent store of rectangles detected on every frame. File starts with
+ * header holding hash of detection parameters, after which records are only
+ * ever appended:
+ * </p>
+ * 
+ * <pre>
+ * int frame | long key | int count | count * (int cx, cy, sx, sy) | int crc
+ * </pre>
+ * <p>
+ * Key of every record is chained over identities of all input files up to that
+ * frame, because detection result depends on background built from all
+ * previous frames. Index of records is built when file is opened. Trailing
+ * record damaged by a crash fails its checksum and is cut off, so detection
+ * can continue from where it stopped.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class DetectionCache implements Closeable
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int MAGIC = 0x4D544443;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int RECTANGLE_SIZE = 16;
+	private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+
+	private final RandomAccessFile file;
+	private final Map<Integer, Long> keys = new HashMap<>();
+	private final Map<Integer, List<ShapeRectangle>> detections;
+	private final boolean isReadOnly;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Opens cache file, creating it if necessary. Existing file created with
+	 * different detection parameters is discarded.
+	 * </p>
+	 * 
+	 * @param path
+	 * @param parametersKey
+	 * @throws IOException
+	 */
+	public DetectionCache(File path, long parametersKey) throws IOException
+	{
+		detections = new HashMap<>();
+		isReadOnly = false;
+		file = new RandomAccessFile(path, "rw");
+
+		if (!readHeader(parametersKey))
+		{
+			file.setLength(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(parametersKey);
+			file.write(header.array());
+			file.getFD().sync();
+		}
+		else
+			readRecords();
+	}
+
+	private DetectionCache(File path) throws IOException
+	{
+		detections = new HashMap<>();
+		isReadOnly = true;
+		file = new RandomAccessFile(path, "r");
+
+		if (file.length() < HEADER_SIZE || file.readInt() != MAGIC
+				|| file.readInt() != VERSION)
+		{
+			file.close();
+			throw new IOException(path + " is not a detection cache");
+		}
+		readRecords();
+	}
+
+	/**
+	 * <p>
+	 * Opens existing cache file for reading only, whatever detection
+	 * parameters it was created with. Record damaged by a crash is skipped,
+	 * but left in the file.
+	 * </p>
+	 * 
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static DetectionCache openReadOnly(File path) throws IOException
+	{
+		return new DetectionCache(path);
+	}
+
+	/**
+	 * <p>
+	 * Returns hash identifying file contents by its path, size and
+	 * modification time.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	public static long identityOf(File frame)
+	{
+		return keyOf(frame.getAbsolutePath(), frame.length(),
+				frame.lastModified());
+	}
+
+	/**
+	 * <p>
+	 * Returns hash of textual forms of given values, used to identify
+	 * parameters detection was run with.
+	 * </p>
+	 * 
+	 * @param values
+	 * @return
+	 */
+	public static long keyOf(Object... values)
+	{
+		long key = FNV_OFFSET;
+		for (Object value : values)
+		{
+			for (byte b : String.valueOf(value).getBytes(
+					StandardCharsets.UTF_8))
+				key = combine(key, b);
+			// Separator, so that ("ab", "c") and ("a", "bc") differ
+			key = combine(key, 0);
+		}
+
+		return key;
+	}
+
+	/**
+	 * <p>
+	 * Chains previous key with next value.
+	 * </p>
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public static long chain(long key, long value)
+	{
+		for (int i = 0; i < 8; i++)
+			key = combine(key, (int) (value >>> (8 * i)));
+
+		return key;
+	}
+
+	/**
+	 * <p>
+	 * Returns rectangles stored for given frame or null, if there are none or
+	 * they were computed for different input.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @param key
+	 * @return
+	 */
+	public synchronized List<ShapeRectangle> get(int frame, long key)
+	{
+		Long storedKey = keys.get(frame);
+		if (storedKey == null || storedKey != key) return null;
+
+		List<ShapeRectangle> copy = new ArrayList<>();
+		for (ShapeRectangle r : detections.get(frame))
+			copy.add(copyOf(r));
+
+		return copy;
+	}
+
+	/**
+	 * <p>
+	 * Checks if valid rectangles are stored for given frame.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @param key
+	 * @return
+	 */
+	public synchronized boolean contains(int frame, long key)
+	{
+		Long storedKey = keys.get(frame);
+		return storedKey != null && storedKey == key;
+	}
+
+	/**
+	 * <p>
+	 * Appends rectangles detected on given frame and forces them to disk.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @param key
+	 * @param rectangles
+	 * @throws IOException
+	 */
+	public synchronized void put(int frame, long key,
+			List<ShapeRectangle> rectangles) throws IOException
+	{
+		if (isReadOnly)
+			throw new IllegalStateException("Cache is open for reading only");
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE
+				+ RECTANGLE_SIZE * rectangles.size() + 4);
+		record.putInt(frame).putLong(key).putInt(rectangles.size());
+		List<ShapeRectangle> stored = new ArrayList<>(rectangles.size());
+		for (ShapeRectangle r : rectangles)
+		{
+			record.putInt(r.centerX).putInt(r.centerY).putInt(r.sideX)
+					.putInt(r.sideY);
+			stored.add(copyOf(r));
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+
+		file.seek(file.length());
+		file.write(record.array());
+		file.getFD().sync();
+
+		keys.put(frame, key);
+		detections.put(frame, stored);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		file.close();
+	}
+
+	private boolean readHeader(long parametersKey) throws IOException
+	{
+		if (file.length() < HEADER_SIZE) return false;
+
+		file.seek(0);
+		return file.readInt() == MAGIC && file.readInt() == VERSION
+				&& file.readLong() == parametersKey;
+	}
+
+	private void readRecords() throws IOException
+	{
+		byte[] data = new byte[(int) (file.length() - HEADER_SIZE)];
+		file.seek(HEADER_SIZE);
+		file.readFully(data);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+
+		/* Partial header of the last record is left where it starts */
+		while (buffer.remaining() >= RECORD_HEADER_SIZE + 4)
+		{
+			int start = buffer.position();
+			int frame = buffer.getInt();
+			long key = buffer.getLong();
+			int count = buffer.getInt();
+			if (count < 0
+					|| buffer.remaining() < (long) count * RECTANGLE_SIZE + 4)
+			{
+				buffer.position(start);
+				break;
+			}
+
+			List<ShapeRectangle> rectangles = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+			{
+				ShapeRectangle r = new ShapeRectangle();
+				r.centerX = buffer.getInt();
+				r.centerY = buffer.getInt();
+				r.sideX = buffer.getInt();
+				r.sideY = buffer.getInt();
+				rectangles.add(r);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data, start, buffer.position() - start);
+			if (buffer.getInt() != (int) crc.getValue())
+			{
+				buffer.position(start);
+				break;
+			}
+
+			keys.put(frame, key);
+			detections.put(frame, rectangles);
+		}
+
+		/* Cut off record left incomplete by a crash */
+		if (!isReadOnly) file.setLength(HEADER_SIZE + buffer.position());
+	}
+
+	private static long combine(long key, int octet)
+	{
+		// Single FNV-1a step
+		return (key ^ (octet & 0xFF)) * FNV_PRIME;
+	}
+
+	private static ShapeRectangle copyOf(ShapeRectangle r)
+	{
+		ShapeRectangle copy = new ShapeRectangle();
+		copy.centerX = r.centerX;
+		copy.centerY = r.centerY;
+		copy.sideX = r.sideX;
+		copy.sideY = r.sideY;
+
+		return copy;
+	}
+}
@@ -0,0 +1,46 @@
+package tracking;
+
+/**
+ * <p>
+ * Describes how frame decoding and encoding tasks are scheduled.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public enum ExecutionMode
+{
+	/**
+	 * <p>
+	 * Frame I/O runs on a fixed pool of platform threads.
+	 * </p>
+	 */
+	FIXED_POOL,
+
+	/**
+	 * <p>
+	 * Every frame read or write runs on its own virtual thread, while filter
+	 * stages stay on a bounded platform pool.
+	 * </p>
+	 */
+	VIRTUAL_THREADS;
+
+	/**
+	 * <p>
+	 * Returns execution mode named by system property or default one if
+	 * property is not set.
+	 * </p>
+	 * 
+	 * @param property
+	 * @param defaultMode
+	 * @return
+	 */
+	public static ExecutionMode fromProperty(String property,
+			ExecutionMode defaultMode)
+	{
+		String value = System.getProperty(property);
+		if (value == null || value.isEmpty()) return defaultMode;
+
+		return valueOf(value.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,543 @@
+package tracking;
+
+import image.Image;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * <p>
+ * Source of frames written to a directory while tracking runs. New files are
+ * noticed with {@link WatchService} and handed out once their size stops
+ * changing. Frames are expected to be named in order of acquisition, files
+ * sorting before those already handed out are ignored. Frames which cannot be
+ * read, for example because they are still being written, are read again a
+ * few times and skipped if that does not help.
+ * </p>
+ * <p>
+ * Latency of a frame lasts from its arrival until its result is published,
+ * see {@link #complete(int)}. When the oldest frame not published yet is
+ * older than allowed, or too many frames wait or are being processed, chosen
+ * {@link RateControl} policy keeps latency bounded. Skipped frames and frames
+ * published late are reported.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class LiveFrameSource implements Closeable
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final long POLL_MILLIS = 50;
+	private static final int READ_ATTEMPTS = 3;
+	private static final long RETRY_MILLIS = 200;
+	/* Numbers within names are compared by value, so frame9 precedes frame10 */
+	private static final Comparator<Path> NAME_ORDER = new Comparator<Path>()
+	{
+		@Override
+		public int compare(Path p1, Path p2)
+		{
+			return compareNames(p1.getFileName().toString(), p2.getFileName()
+					.toString());
+		}
+	};
+
+	private final Path directory;
+	private final String suffix;
+	private final RateControl rateControl;
+	private final int maxBacklog;
+	private final long maxLatencyMillis;
+	private final int reductionFactor;
+	private final long idleTimeoutMillis;
+
+	private final WatchService watchService;
+	private final Thread watcher;
+	private final BlockingDeque<Arrival> readyFrames;
+	/* Frames handed out whose results are not published yet, by number */
+	private final ConcurrentNavigableMap<Integer, Arrival> processedFrames;
+	private volatile boolean isClosed = false;
+
+	private int nextNumber = 0;
+	private int droppedFrames = 0;
+	private int unreadableFrames = 0;
+	private final AtomicInteger lateFrames = new AtomicInteger();
+	private final AtomicLong worstLatencyMillis = new AtomicLong();
+
+	/**
+	 * <p>
+	 * Frame handed out by the source.
+	 * </p>
+	 * 
+	 * @author Piotr Waszkiewicz
+	 *
+	 */
+	public static final class Frame
+	{
+		public final int number;
+		public final String path;
+		public final Image image;
+		/* How many times frame is smaller than the original */
+		public final int scale;
+
+		private Frame(int number, String path, Image image, int scale)
+		{
+			this.number = number;
+			this.path = path;
+			this.image = image;
+			this.scale = scale;
+		}
+	}
+
+	/**
+	 * <p>
+	 * File which is ready to be read, with time it was noticed at.
+	 * </p>
+	 */
+	private static final class Arrival
+	{
+		private final Path path;
+		private final long time;
+
+		private Arrival(Path path, long time)
+		{
+			this.path = path;
+			this.time = time;
+		}
+	}
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Starts watching directory for files ending with given suffix. Files
+	 * already present are handed out first, in name order.
+	 * </p>
+	 * 
+	 * @param directory
+	 * @param suffix
+	 * @param rateControl
+	 *            policy applied when lagging
+	 * @param maxBacklog
+	 *            number of waiting frames above which source is lagging
+	 * @param maxLatencyMillis
+	 *            waiting time above which source is lagging
+	 * @param reductionFactor
+	 *            decimation step or resolution divisor used when lagging
+	 * @param idleTimeoutMillis
+	 *            time without new frames after which source ends
+	 * @throws IOException
+	 */
+	public LiveFrameSource(File directory, String suffix,
+			RateControl rateControl, int maxBacklog, long maxLatencyMillis,
+			int reductionFactor, long idleTimeoutMillis) throws IOException
+	{
+		if (maxBacklog < 1 || maxLatencyMillis < 0 || reductionFactor < 1
+				|| idleTimeoutMillis <= 0)
+			throw new IllegalArgumentException("Invalid rate control limits");
+
+		this.directory = directory.toPath();
+		this.suffix = suffix;
+		this.rateControl = rateControl;
+		this.maxBacklog = maxBacklog;
+		this.maxLatencyMillis = maxLatencyMillis;
+		this.reductionFactor = reductionFactor;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+
+		readyFrames = new LinkedBlockingDeque<>();
+		processedFrames = new ConcurrentSkipListMap<>();
+		watchService = FileSystems.getDefault().newWatchService();
+		this.directory.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+
+		watcher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				watch();
+			}
+		}, "frame-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * <p>
+	 * Returns next frame to process, waiting for it if necessary. Returns
+	 * null when no new frame appeared for idle timeout or source was closed.
+	 * Frames are numbered from 0, skipped frames do not get numbers.
+	 * </p>
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Frame next() throws InterruptedException
+	{
+		while (true)
+		{
+			Arrival arrival = readyFrames.poll(idleTimeoutMillis,
+					TimeUnit.MILLISECONDS);
+			if (arrival == null || isClosed) return null;
+
+			int scale = 1;
+			if (isLagging(arrival))
+				switch (rateControl)
+				{
+					case DROP:
+						while (isLagging(arrival) && !readyFrames.isEmpty())
+						{
+							drop(arrival);
+							arrival = readyFrames.poll();
+						}
+						break;
+					case DECIMATE:
+						for (int i = 1; i < reductionFactor
+								&& !readyFrames.isEmpty(); i++)
+							drop(readyFrames.poll());
+						break;
+					case REDUCED_RESOLUTION:
+						scale = reductionFactor;
+						break;
+				}
+
+			Image image = readFrame(arrival.path, scale);
+			if (image == null) continue;
+
+			processedFrames.put(nextNumber, arrival);
+			return new Frame(nextNumber++, arrival.path.toString(), image,
+					scale);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Marks result of frame with given number as published, which ends its
+	 * latency. Every frame handed out must be completed once, from any
+	 * thread.
+	 * </p>
+	 * 
+	 * @param number
+	 */
+	public void complete(int number)
+	{
+		Arrival arrival = processedFrames.remove(number);
+		if (arrival == null)
+			throw new IllegalArgumentException("Frame " + number
+					+ " is not being processed");
+
+		long latency = System.currentTimeMillis() - arrival.time;
+		if (latency > maxLatencyMillis)
+		{
+			lateFrames.incrementAndGet();
+			System.out.println("Frame " + arrival.path.getFileName()
+					+ " is published " + latency + " ms after arrival");
+		}
+
+		long worst;
+		while (latency > (worst = worstLatencyMillis.get())
+				&& !worstLatencyMillis.compareAndSet(worst, latency))
+			;
+	}
+
+	/**
+	 * <p>
+	 * Returns number of frames skipped by rate control.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getDroppedFrames()
+	{
+		return droppedFrames;
+	}
+
+	/**
+	 * <p>
+	 * Returns number of frames skipped because they could not be read.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getUnreadableFrames()
+	{
+		return unreadableFrames;
+	}
+
+	/**
+	 * <p>
+	 * Returns number of frames published later than maximal latency.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getLateFrames()
+	{
+		return lateFrames.get();
+	}
+
+	/**
+	 * <p>
+	 * Returns the longest time from arrival of a frame until publishing its
+	 * result.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public long getWorstLatencyMillis()
+	{
+		return worstLatencyMillis.get();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		isClosed = true;
+		watcher.interrupt();
+		watchService.close();
+	}
+
+	/**
+	 * <p>
+	 * Returns whether frames waiting in the source, given one included, and
+	 * frames being processed are too many, or the oldest of them arrived too
+	 * long ago.
+	 * </p>
+	 */
+	private boolean isLagging(Arrival head)
+	{
+		Map.Entry<Integer, Arrival> oldest = processedFrames.firstEntry();
+		long oldestTime = oldest != null ? oldest.getValue().time : head.time;
+
+		return readyFrames.size() + processedFrames.size() + 1 > maxBacklog
+				|| System.currentTimeMillis() - oldestTime > maxLatencyMillis;
+	}
+
+	private void drop(Arrival arrival)
+	{
+		droppedFrames++;
+		System.out.println("Dropped frame " + arrival.path.getFileName()
+				+ " waiting for "
+				+ (System.currentTimeMillis() - arrival.time) + " ms");
+	}
+
+	/**
+	 * <p>
+	 * Reads frame, again after a while if it fails, since file may still be
+	 * written. Returns null if frame could not be read at all.
+	 * </p>
+	 */
+	private Image readFrame(Path path, int scale) throws InterruptedException
+	{
+		for (int attempt = 1;; attempt++)
+			try
+			{
+				return read(path, scale);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Could not read frame "
+						+ path.getFileName() + " (attempt " + attempt + " of "
+						+ READ_ATTEMPTS + "): " + e.getMessage());
+				if (attempt == READ_ATTEMPTS)
+				{
+					unreadableFrames++;
+					return null;
+				}
+				Thread.sleep(RETRY_MILLIS);
+			}
+	}
+
+	private void watch()
+	{
+		/* Files still being written, with their last seen size */
+		Map<Path, Long> pendingFiles = new LinkedHashMap<>();
+		/*
+		 * Writers flushing in steps modify files after they were handed out.
+		 * Files up to watermark are ignored, others handed out are kept here.
+		 */
+		NavigableSet<Path> handedOutFiles = new TreeSet<>(NAME_ORDER);
+		Path watermark = null;
+
+		List<Path> existing = new ArrayList<>();
+		File[] files = directory.toFile().listFiles();
+		if (files != null) for (File f : files)
+			if (f.getName().endsWith(suffix)) existing.add(f.toPath());
+		Collections.sort(existing, NAME_ORDER);
+		for (Path p : existing)
+			pendingFiles.put(p, -1L);
+
+		try
+		{
+			while (!isClosed)
+			{
+				WatchKey key = watchService.poll(POLL_MILLIS,
+						TimeUnit.MILLISECONDS);
+				if (key != null)
+				{
+					for (WatchEvent<?> event : key.pollEvents())
+					{
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+							continue;
+
+						Path file = directory.resolve((Path) event.context());
+						if (file.toString().endsWith(suffix)
+								&& !pendingFiles.containsKey(file)
+								&& !handedOutFiles.contains(file)
+								&& (watermark == null || NAME_ORDER
+										.compare(file, watermark) > 0))
+							pendingFiles.put(file, -1L);
+					}
+					key.reset();
+				}
+
+				/* File is ready when its size did not change since last poll */
+				Iterator<Map.Entry<Path, Long>> it = pendingFiles.entrySet()
+						.iterator();
+				while (it.hasNext())
+				{
+					Map.Entry<Path, Long> entry = it.next();
+					long size = entry.getKey().toFile().length();
+					if (size > 0 && size == entry.getValue())
+					{
+						readyFrames.add(new Arrival(entry.getKey(), System
+								.currentTimeMillis()));
+						handedOutFiles.add(entry.getKey());
+						it.remove();
+					}
+					else
+						entry.setValue(size);
+				}
+
+				/* Watermark moves up to the first file still pending */
+				Path firstPending = null;
+				for (Path p : pendingFiles.keySet())
+					if (firstPending == null
+							|| NAME_ORDER.compare(p, firstPending) < 0)
+						firstPending = p;
+				Path limit = firstPending == null ? (handedOutFiles
+						.isEmpty() ? null : handedOutFiles.last())
+						: handedOutFiles.lower(firstPending);
+				if (limit != null)
+				{
+					watermark = limit;
+					handedOutFiles.headSet(limit, true).clear();
+				}
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException e)
+		{
+			// Source was closed
+		}
+	}
+
+	/**
+	 * <p>
+	 * Compares names character by character, except for runs of digits which
+	 * are compared as numbers.
+	 * </p>
+	 */
+	private static int compareNames(String name1, String name2)
+	{
+		int i = 0, j = 0;
+		while (i < name1.length() && j < name2.length())
+		{
+			if (Character.isDigit(name1.charAt(i))
+					&& Character.isDigit(name2.charAt(j)))
+			{
+				int start1 = i, start2 = j;
+				while (i < name1.length() && Character.isDigit(name1.charAt(i)))
+					i++;
+				while (j < name2.length() && Character.isDigit(name2.charAt(j)))
+					j++;
+				String number1 = stripZeros(name1.substring(start1, i));
+				String number2 = stripZeros(name2.substring(start2, j));
+				if (number1.length() != number2.length())
+					return number1.length() - number2.length();
+				int result = number1.compareTo(number2);
+				if (result != 0) return result;
+			}
+			else
+			{
+				if (name1.charAt(i) != name2.charAt(j))
+					return name1.charAt(i) - name2.charAt(j);
+				i++;
+				j++;
+			}
+		}
+
+		if (i < name1.length() || j < name2.length())
+			return i < name1.length() ? 1 : -1;
+		/* Names differing only in leading zeros must not be equal */
+		return name1.compareTo(name2);
+	}
+
+	private static String stripZeros(String number)
+	{
+		int start = 0;
+		while (start < number.length() - 1 && number.charAt(start) == '0')
+			start++;
+
+		return number.substring(start);
+	}
+
+	private static Image read(Path path, int scale) throws IOException
+	{
+		if (scale == 1) return new Image(path.toString());
+
+		try (ImageInputStream stream = ImageIO.createImageInputStream(path
+				.toFile()))
+		{
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext())
+				throw new IOException("No reader for " + path);
+
+			ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput(stream);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(scale, scale, 0, 0);
+				BufferedImage image = reader.read(0, param);
+				return new Image(image);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+}
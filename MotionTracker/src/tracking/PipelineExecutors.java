@@ -0,0 +1,178 @@
+package tracking;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Holds executors used by tracking pipeline. CPU-bound filter stages always
+ * run on a bounded pool of platform threads, while frame reads and writes are
+ * scheduled according to chosen {@link ExecutionMode}.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class PipelineExecutors
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private final ExecutionMode mode;
+	private final ExecutorService computeExecutor;
+	private final ExecutorService ioExecutor;
+	private final boolean isVirtual;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Creates executors for given mode. In {@link ExecutionMode#FIXED_POOL}
+	 * mode frame I/O gets its own pool of ioThreads platform threads, in
+	 * {@link ExecutionMode#VIRTUAL_THREADS} mode ioThreads is ignored.
+	 * </p>
+	 * 
+	 * @param mode
+	 * @param computeThreads
+	 * @param ioThreads
+	 */
+	public PipelineExecutors(ExecutionMode mode, int computeThreads,
+			int ioThreads)
+	{
+		if (computeThreads <= 0 || ioThreads <= 0)
+			throw new IllegalArgumentException(
+					"Number of threads must be positive!");
+
+		this.mode = mode;
+		computeExecutor = Executors.newFixedThreadPool(computeThreads);
+
+		ExecutorService virtualExecutor = null;
+		if (mode == ExecutionMode.VIRTUAL_THREADS)
+		{
+			virtualExecutor = newVirtualThreadExecutor();
+			if (virtualExecutor == null)
+				System.err.println("Virtual threads are not available in this "
+						+ "runtime, falling back to cached thread pool");
+		}
+
+		isVirtual = virtualExecutor != null;
+		if (isVirtual)
+			ioExecutor = virtualExecutor;
+		else if (mode == ExecutionMode.VIRTUAL_THREADS)
+			ioExecutor = Executors.newCachedThreadPool();
+		else
+			ioExecutor = Executors.newFixedThreadPool(ioThreads);
+	}
+
+	/**
+	 * <p>
+	 * Returns whether this runtime can create virtual threads. Where it cannot,
+	 * {@link ExecutionMode#VIRTUAL_THREADS} mode runs frame I/O on cached pool
+	 * of platform threads instead.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public static boolean areVirtualThreadsAvailable()
+	{
+		try
+		{
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Returns mode these executors were created with.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public ExecutionMode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * <p>
+	 * Returns whether frame I/O really runs on virtual threads, which is not
+	 * the case in {@link ExecutionMode#VIRTUAL_THREADS} mode on runtimes that
+	 * lack them.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public boolean usesVirtualThreads()
+	{
+		return isVirtual;
+	}
+
+	/**
+	 * <p>
+	 * Returns executor for CPU-bound filter stages.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public ExecutorService getComputeExecutor()
+	{
+		return computeExecutor;
+	}
+
+	/**
+	 * <p>
+	 * Returns executor for frame decoding and encoding tasks.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public ExecutorService getIOExecutor()
+	{
+		return ioExecutor;
+	}
+
+	/**
+	 * <p>
+	 * Stops accepting new tasks and waits for already submitted ones.
+	 * </p>
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void shutdownAndWait() throws InterruptedException
+	{
+		computeExecutor.shutdown();
+		ioExecutor.shutdown();
+		computeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		ioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * <p>
+	 * Returns executor starting virtual thread per task, or null if runtime
+	 * has no virtual threads.
+	 * </p>
+	 */
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		// Looked up reflectively so that the rest of the project still builds
+		// and runs on releases without virtual threads
+		try
+		{
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package tracking;
+
+/**
+ * <p>
+ * Policy applied by {@link LiveFrameSource} when processing falls behind
+ * acquisition.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public enum RateControl
+{
+	/**
+	 * <p>
+	 * Oldest waiting frames are skipped until backlog is within limits.
+	 * </p>
+	 */
+	DROP,
+
+	/**
+	 * <p>
+	 * Only every n-th waiting frame is processed.
+	 * </p>
+	 */
+	DECIMATE,
+
+	/**
+	 * <p>
+	 * Every frame is processed, but decoded at reduced resolution.
+	 * </p>
+	 */
+	REDUCED_RESOLUTION;
+
+	/**
+	 * <p>
+	 * Returns policy named by system property, in any case, or default one if
+	 * property is not set.
+	 * </p>
+	 * 
+	 * @param property
+	 * @param defaultPolicy
+	 * @return
+	 */
+	public static RateControl fromProperty(String property,
+			RateControl defaultPolicy)
+	{
+		String value = System.getProperty(property);
+		if (value == null || value.isEmpty()) return defaultPolicy;
+
+		return valueOf(value.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,181 @@
+package tracking;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Fixed number of slots, keyed by frame number, through which workers
+ * finishing in any order hand their results to single consumer, which takes
+ * them strictly in order of frames. Results are published into slot with
+ * compare-and-set, so workers never block each other nor the consumer, and
+ * publishing result happens-before taking it.
+ * </p>
+ * <p>
+ * Buffer holds frames from the next one to be taken up to capacity frames
+ * further. Whoever hands frames out to workers must not hand out frame the
+ * buffer has no room for yet, see {@link #hasRoomFor(int)}. Published
+ * results must not be changed anymore.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class ReorderBuffer<T>
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private final AtomicReferenceArray<T> slots;
+	/* Written by the consumer only */
+	private volatile int next;
+	private volatile Thread waitingConsumer;
+	private volatile Throwable failure;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Creates buffer whose first frame to be taken has given number.
+	 * </p>
+	 * 
+	 * @param first
+	 * @param capacity
+	 */
+	public ReorderBuffer(int first, int capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive!");
+		if (first < 0)
+			throw new IllegalArgumentException(
+					"Frame number must not be negative!");
+
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.next = first;
+	}
+
+	/**
+	 * <p>
+	 * Publishes result of given frame. Every frame can be published once.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @param result
+	 */
+	public void publish(int frame, T result)
+	{
+		if (result == null)
+			throw new IllegalArgumentException("Result must not be null!");
+		if (frame < next || !hasRoomFor(frame))
+			throw new IllegalArgumentException("Frame " + frame
+					+ " is outside of buffer");
+		if (!slots.compareAndSet(frame % slots.length(), null, result))
+			throw new IllegalStateException("Frame " + frame
+					+ " was already published");
+
+		Thread consumer = waitingConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * <p>
+	 * Marks buffer as failed, so that consumer stops waiting for results that
+	 * will never come and gets the cause instead.
+	 * </p>
+	 * 
+	 * @param cause
+	 */
+	public void fail(Throwable cause)
+	{
+		failure = cause;
+
+		Thread consumer = waitingConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * <p>
+	 * Returns whether result of given frame can be published now.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	public boolean hasRoomFor(int frame)
+	{
+		return frame < next + slots.length();
+	}
+
+	/**
+	 * <p>
+	 * Returns number of the next frame to be taken.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getNext()
+	{
+		return next;
+	}
+
+	/**
+	 * <p>
+	 * Takes result of the next frame if it is published already, otherwise
+	 * returns null. Must be called by the consumer only.
+	 * </p>
+	 * 
+	 * @return
+	 * @throws ExecutionException
+	 *             if buffer failed
+	 */
+	public T poll() throws ExecutionException
+	{
+		if (failure != null) throw new ExecutionException(failure);
+
+		int slot = next % slots.length();
+		T result = slots.get(slot);
+		if (result == null) return null;
+
+		/* Slot is emptied before the window moves past it */
+		slots.set(slot, null);
+		next++;
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Takes result of the next frame, waiting until it is published. Must be
+	 * called by the consumer only.
+	 * </p>
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 *             if buffer failed
+	 */
+	public T take() throws InterruptedException, ExecutionException
+	{
+		T result = poll();
+		if (result != null) return result;
+
+		/* Worker unparks consumer after publishing, so check follows setting */
+		waitingConsumer = Thread.currentThread();
+		try
+		{
+			while ((result = poll()) == null)
+			{
+				LockSupport.park(this);
+				if (Thread.interrupted()) throw new InterruptedException();
+			}
+		}
+		finally
+		{
+			waitingConsumer = null;
+		}
+
+		return result;
+	}
+}
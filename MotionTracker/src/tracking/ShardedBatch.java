@@ -0,0 +1,688 @@
+package tracking;
+
+import image.Image;
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>
+ * Splits recorded sequence into overlapping chunks of frames, each of which
+ * can be processed by separate worker process, on this or any other host
+ * sharing the file system. Workers warm the background up, detect objects,
+ * track them within the chunk and write both detections and tracks to the
+ * shared directory. Merge step stitches tracks of neighbouring chunks where
+ * they pass through the same detection in the overlapping frames.
+ * </p>
+ * <p>
+ * Usage:
+ * </p>
+ * 
+ * <pre>
+ * ShardedBatch plan        chunkLength overlap warmup directory
+ * ShardedBatch backgrounds chunkLength overlap directory
+ * ShardedBatch worker      first last warmup directory
+ * ShardedBatch merge       directory [verify]
+ * ShardedBatch run         chunkLength overlap warmup directory processes
+ * </pre>
+ * <p>
+ * Warmup is either snapshot, a number of frames, or negative number. With
+ * snapshot, backgrounds command reads the sequence once, only updating
+ * background, and saves background as it is before every chunk, which
+ * workers start from. Detections are then exactly those of single process.
+ * Plan then prints backgrounds command first, it must end before workers
+ * start. Negative warmup makes every worker warm the background up from the
+ * first frame of the sequence, which is exact as well, but every worker then
+ * reads all frames before its chunk. With finite warmup, background of chunk
+ * is built from warmup frames preceding it only, so detections can differ.
+ * Overlap should be at least as long as the time track survives without
+ * finding its object.
+ * </p>
+ * <p>
+ * Merge checks that chunks cover the whole sequence as planned, that
+ * neighbouring chunks detected the same objects on frames they share and that
+ * stitched tracks are the same as tracks built from detections of all chunks
+ * at once. If any check fails, merged tracks are not written and program
+ * exits with status 1. Merge with verify also tracks the whole sequence again
+ * in this process and compares the result with stitched tracks.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class ShardedBatch
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final String CHUNK_NAME = "chunk-%06d-%06d";
+	private static final String BACKGROUND_NAME = "background-%06d.png";
+	private static final String MERGED_TRACKS = "tracks.bin";
+	private static final String SNAPSHOT = "snapshot";
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Runs command given in arguments.
+	 * </p>
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			String command = args.length > 0 ? args[0] : "";
+			switch (command)
+			{
+				case "plan":
+					List<int[]> chunks = planChunks(number(args, 1,
+							"chunkLength"), number(args, 2, "overlap"));
+					String warmup = parseWarmup(args, 3);
+					String directory = argument(args, 4, "directory");
+					if (warmup.equals(SNAPSHOT))
+						System.out.println(String.join(" ", command(
+								"backgrounds", args[1], args[2], directory)));
+					for (int[] chunk : chunks)
+						System.out.println(String.join(" ", command("worker",
+								String.valueOf(chunk[0]), String
+										.valueOf(chunk[1]), warmup,
+								directory)));
+					break;
+				case "backgrounds":
+					saveBackgrounds(planChunks(number(args, 1, "chunkLength"),
+							number(args, 2, "overlap")), new File(argument(
+							args, 3, "directory")));
+					break;
+				case "worker":
+					runWorker(number(args, 1, "first"), number(args, 2,
+							"last"), parseWarmup(args, 3), new File(argument(
+							args, 4, "directory")));
+					break;
+				case "merge":
+					if (!merge(new File(argument(args, 1, "directory")),
+							args.length > 2 && args[2].equals("verify")))
+						System.exit(1);
+					break;
+				case "run":
+					runLocally(number(args, 1, "chunkLength"), number(args, 2,
+							"overlap"), parseWarmup(args, 3), new File(
+							argument(args, 4, "directory")), number(args, 5,
+							"processes"));
+					break;
+				default:
+					System.err.println("Unknown command: " + command);
+					System.exit(2);
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+		catch (IOException | InterruptedException | ExecutionException e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Returns chunks, as pairs of first and last frame, covering the whole
+	 * sequence. Neighbouring chunks share given number of frames.
+	 * </p>
+	 * 
+	 * @param chunkLength
+	 * @param overlap
+	 * @return
+	 */
+	public static List<int[]> planChunks(int chunkLength, int overlap)
+	{
+		if (chunkLength <= overlap || overlap < 0)
+			throw new IllegalArgumentException(
+					"Chunks must be longer than overlap");
+
+		List<int[]> chunks = new ArrayList<>();
+		int lastFrame = Tracker.NUMBER_OF_PHOTOS - 1;
+		for (int first = 1;; first += chunkLength - overlap)
+		{
+			int last = Math.min(lastFrame, first + chunkLength - 1);
+			chunks.add(new int[] { first, last });
+			if (last == lastFrame) break;
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * <p>
+	 * Joins tracks of previous chunks with tracks of next chunk. Previous
+	 * track continues as the next track it first shares position with inside
+	 * overlap, preferring the one started on the same frame (or on the first
+	 * frame of overlap) if there are many.
+	 * Next tracks started inside overlap on position already held by
+	 * previous track are duplicates and are dropped.
+	 * </p>
+	 * 
+	 * @param previous
+	 * @param next
+	 * @param overlapFirst
+	 * @param overlapLast
+	 * @return
+	 */
+	public static List<Track> stitch(List<Track> previous, List<Track> next,
+			int overlapFirst, int overlapLast)
+	{
+		List<Track> result = new ArrayList<>();
+		boolean[] isContinued = new boolean[next.size()];
+
+		for (Track track : previous)
+		{
+			int first = Math.max(overlapFirst, track.getFirstFrame());
+			int last = Math.min(overlapLast, track.getLastFrame());
+			Track joined = null;
+
+			/* Track started together with this one is preferred */
+			for (int f = first; f <= last && joined == null; f++)
+			{
+				int index = -1;
+				for (int j = 0; j < next.size(); j++)
+					if (Track.isSamePosition(track.getPosition(f), next.get(j)
+							.getPosition(f))
+							&& (index < 0 || next.get(j).getFirstFrame() == first
+									&& next.get(index).getFirstFrame() != first))
+						index = j;
+
+				if (index >= 0)
+				{
+					joined = track.joinedWith(next.get(index), f);
+					isContinued[index] = true;
+				}
+			}
+
+			result.add(joined != null ? joined : track);
+		}
+
+		for (int j = 0; j < next.size(); j++)
+		{
+			Track track = next.get(j);
+			if (isContinued[j]) continue;
+
+			boolean isDuplicate = false;
+			if (track.getFirstFrame() <= overlapLast)
+				for (Track p : previous)
+					if (Track.isSamePosition(p.getPosition(track
+							.getFirstFrame()), track.getPosition(track
+							.getFirstFrame())))
+					{
+						isDuplicate = true;
+						break;
+					}
+
+			if (!isDuplicate) result.add(track);
+		}
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Saves background as it is before the first frame of every chunk but
+	 * the one starting the sequence.
+	 * </p>
+	 */
+	private static void saveBackgrounds(List<int[]> chunks, File directory)
+			throws IOException, InterruptedException, ExecutionException
+	{
+		directory.mkdirs();
+		int[] frames = new int[chunks.size() - 1];
+		for (int k = 1; k < chunks.size(); k++)
+			frames[k - 1] = chunks.get(k)[0];
+
+		PipelineExecutors executors = new PipelineExecutors(
+				Tracker.EXECUTION_MODE, Tracker.COMPUTE_THREADS,
+				Tracker.IO_THREADS);
+		try
+		{
+			Tracker.saveBackgrounds(executors, frames, new File(directory,
+					BACKGROUND_NAME).getPath());
+		}
+		finally
+		{
+			executors.shutdownAndWait();
+		}
+		System.out.println("Saved " + frames.length + " backgrounds");
+	}
+
+	private static void runWorker(int first, int last, String warmup,
+			File directory) throws IOException, InterruptedException,
+			ExecutionException
+	{
+		if (first < 1 || first > last || last >= Tracker.NUMBER_OF_PHOTOS)
+			throw new IllegalArgumentException("Frames " + first + " to "
+					+ last + " are not a part of the sequence");
+
+		directory.mkdirs();
+		String name = String.format(CHUNK_NAME, first, last);
+		int warmupStart = 0;
+		Image background = null;
+		if (warmup.equals(SNAPSHOT))
+			background = loadBackground(directory, first);
+		else if (Integer.parseInt(warmup) >= 0)
+			warmupStart = Math.max(0, first - 1 - Integer.parseInt(warmup));
+
+		PipelineExecutors executors = new PipelineExecutors(
+				Tracker.EXECUTION_MODE, Tracker.COMPUTE_THREADS,
+				Tracker.IO_THREADS);
+		/* Cache makes worker resume where it stopped if it is run again */
+		try (DetectionCache cache = new DetectionCache(new File(directory,
+				name + ".cache"), DetectionCache.chain(
+				Tracker.getParametersKey(), DetectionCache.keyOf(warmup))))
+		{
+			List<Track> tracks = Tracker.trackFrames(executors, first, last,
+					warmupStart, background, Tracker.getFrameKeys(), cache,
+					null);
+			TrackFile.write(tracks, new File(directory, name + ".tracks"));
+		}
+		finally
+		{
+			executors.shutdownAndWait();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Returns background saved before given frame, or null for the first
+	 * frame of the sequence, whose chunk warms up from frame 0 only.
+	 * </p>
+	 */
+	private static Image loadBackground(File directory, int frame)
+			throws IOException
+	{
+		if (frame == 1) return null;
+
+		File file = new File(directory, String.format(BACKGROUND_NAME, frame));
+		if (!file.exists())
+			throw new IOException("Background " + file + " is missing, "
+					+ "backgrounds command must end before workers start");
+
+		return new Image(file.getPath());
+	}
+
+	private static boolean merge(File directory, boolean verify)
+			throws IOException, InterruptedException, ExecutionException
+	{
+		/* Tracks of earlier merge must not outlive a failed one */
+		new File(directory, MERGED_TRACKS).delete();
+		List<int[]> chunks = findChunks(directory);
+
+		List<Track> stitched = readTracks(directory, chunks.get(0));
+		for (int k = 1; k < chunks.size(); k++)
+			stitched = stitch(stitched, readTracks(directory, chunks.get(k)),
+					chunks.get(k)[0], chunks.get(k - 1)[1]);
+
+		List<List<ShapeRectangle>> detections = readDetections(directory,
+				chunks);
+		if (detections == null
+				|| !isSame(stitched, Tracker.buildTracks(detections, chunks
+						.get(0)[0]), "tracking detections of all chunks"))
+			return false;
+		if (verify && !verify(chunks, stitched)) return false;
+
+		TrackFile.write(stitched, new File(directory, MERGED_TRACKS));
+		System.out.println("Stitched " + stitched.size() + " tracks from "
+				+ chunks.size() + " chunks");
+
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Returns rectangles workers detected on every frame of the sequence.
+	 * Returns null, after reporting it, if neighbouring chunks detected
+	 * different rectangles on any frame they share.
+	 * </p>
+	 */
+	private static List<List<ShapeRectangle>> readDetections(File directory,
+			List<int[]> chunks) throws IOException
+	{
+		long[] frameKeys = Tracker.getFrameKeys();
+		List<List<ShapeRectangle>> detections = new ArrayList<>();
+		int firstFrame = chunks.get(0)[0];
+
+		for (int[] chunk : chunks)
+			try (DetectionCache cache = DetectionCache.openReadOnly(new File(
+					directory, chunkName(chunk) + ".cache")))
+			{
+				for (int f = chunk[0]; f <= chunk[1]; f++)
+				{
+					List<ShapeRectangle> detected = cache.get(f, frameKeys[f]);
+					if (detected == null)
+						throw new IOException("Detections of frame " + f
+								+ " in " + chunkName(chunk) + " are missing "
+								+ "or were made from different input");
+
+					if (f - firstFrame < detections.size())
+					{
+						if (!isSameDetections(detections.get(f - firstFrame),
+								detected))
+						{
+							System.err.println(chunkName(chunk) + " detected "
+									+ "different objects on frame " + f
+									+ " than previous chunk. Its background"
+									+ " differs, use snapshot or negative "
+									+ "warmup for exact results.");
+							return null;
+						}
+					}
+					else
+						detections.add(detected);
+				}
+			}
+
+		return detections;
+	}
+
+	/**
+	 * <p>
+	 * Detects and tracks frames of all chunks in a single process, without
+	 * using anything workers computed, and checks that the result is the same
+	 * as stitched tracks.
+	 * </p>
+	 */
+	private static boolean verify(List<int[]> chunks, List<Track> stitched)
+			throws IOException, InterruptedException, ExecutionException
+	{
+		PipelineExecutors executors = new PipelineExecutors(
+				Tracker.EXECUTION_MODE, Tracker.COMPUTE_THREADS,
+				Tracker.IO_THREADS);
+		List<Track> reference;
+		try
+		{
+			reference = Tracker.trackFrames(executors, chunks.get(0)[0],
+					chunks.get(chunks.size() - 1)[1], 0, null,
+					Tracker.getFrameKeys(), null, null);
+		}
+		finally
+		{
+			executors.shutdownAndWait();
+		}
+
+		if (!isSame(stitched, reference, "single pass tracking")) return false;
+
+		System.out.println("Stitched tracks match single pass tracking");
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Checks that stitched tracks are the same as reference ones, in any
+	 * order, reporting differences if they are not.
+	 * </p>
+	 */
+	private static boolean isSame(List<Track> stitched,
+			List<Track> reference, String referenceName)
+	{
+		boolean[] isMatched = new boolean[reference.size()];
+		int unmatched = 0;
+		for (Track track : stitched)
+		{
+			boolean found = false;
+			for (int i = 0; i < reference.size() && !found; i++)
+				if (!isMatched[i] && track.isSameAs(reference.get(i)))
+				{
+					isMatched[i] = true;
+					found = true;
+				}
+			if (!found) unmatched++;
+		}
+
+		int missing = 0;
+		for (boolean m : isMatched)
+			if (!m) missing++;
+
+		if (unmatched == 0 && missing == 0) return true;
+
+		System.err.println(unmatched + " stitched tracks differ from "
+				+ referenceName + ", " + missing + " of its "
+				+ reference.size() + " tracks are missing");
+		return false;
+	}
+
+	private static boolean isSameDetections(List<ShapeRectangle> detections1,
+			List<ShapeRectangle> detections2)
+	{
+		if (detections1.size() != detections2.size()) return false;
+
+		for (int i = 0; i < detections1.size(); i++)
+			if (!Track.isSamePosition(detections1.get(i), detections2.get(i)))
+				return false;
+
+		return true;
+	}
+
+	private static void runLocally(int chunkLength, int overlap,
+			String warmup, File directory, int processes) throws IOException,
+			InterruptedException, ExecutionException
+	{
+		if (processes <= 0)
+			throw new IllegalArgumentException(
+					"Number of processes must be positive!");
+
+		List<int[]> chunks = planChunks(chunkLength, overlap);
+		if (warmup.equals(SNAPSHOT)) saveBackgrounds(chunks, directory);
+
+		List<Process> running = new ArrayList<>();
+		boolean isFailed = false;
+		for (int[] chunk : chunks)
+		{
+			while (running.size() >= processes)
+				isFailed |= running.remove(0).waitFor() != 0;
+
+			ProcessBuilder builder = new ProcessBuilder(command("worker",
+					String.valueOf(chunk[0]), String.valueOf(chunk[1]),
+					warmup, directory.getPath()));
+			builder.inheritIO();
+			running.add(builder.start());
+		}
+		for (Process process : running)
+			isFailed |= process.waitFor() != 0;
+
+		if (isFailed) throw new IOException("Some of the workers failed");
+		if (!merge(directory, Boolean.getBoolean("tracker.verify")))
+			System.exit(1);
+	}
+
+	/**
+	 * <p>
+	 * Returns command running this program with given arguments and the same
+	 * tracker properties.
+	 * </p>
+	 */
+	private static List<String> command(String... arguments)
+	{
+		List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/java")
+				.getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (Map.Entry<Object, Object> property : System.getProperties()
+				.entrySet())
+			if (property.getKey().toString().startsWith("tracker."))
+				command.add("-D" + property.getKey() + "="
+						+ property.getValue());
+		command.add(ShardedBatch.class.getName());
+		command.addAll(Arrays.asList(arguments));
+
+		return command;
+	}
+
+	/**
+	 * <p>
+	 * Returns chunks whose tracks are in directory, ordered by first frame.
+	 * They must cover the whole sequence the way {@link #planChunks} does:
+	 * all but the last one are as long as the first one, and every chunk
+	 * shares as many frames as the first two do with previous chunk only.
+	 * </p>
+	 */
+	private static List<int[]> findChunks(File directory) throws IOException
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException(directory + " is not a directory");
+
+		List<int[]> chunks = new ArrayList<>();
+		for (File f : files)
+			if (f.getName().startsWith("chunk-")
+					&& f.getName().endsWith(".tracks"))
+				chunks.add(parseChunkName(f.getName()));
+		if (chunks.isEmpty())
+			throw new IOException("No chunks found in " + directory);
+
+		chunks.sort(new Comparator<int[]>()
+		{
+			@Override
+			public int compare(int[] a, int[] b)
+			{
+				return Integer.compare(a[0], b[0]);
+			}
+		});
+
+		int[] first = chunks.get(0);
+		int chunkLength = first[1] - first[0] + 1;
+		int overlap = chunks.size() > 1 ? first[1] - chunks.get(1)[0] + 1 : 0;
+		if (first[0] != 1)
+			throw new IOException("Frames 1 to " + (first[0] - 1)
+					+ " are not covered by any chunk");
+
+		for (int k = 1; k < chunks.size(); k++)
+		{
+			int[] previous = chunks.get(k - 1), chunk = chunks.get(k);
+			if (chunk[0] > previous[1] + 1)
+				throw new IOException("Frames " + (previous[1] + 1) + " to "
+						+ (chunk[0] - 1) + " are not covered by any chunk");
+			if (chunk[0] == previous[0] || chunk[1] <= previous[1])
+				throw new IOException(chunkName(previous) + " and "
+						+ chunkName(chunk) + " do not belong to one plan");
+			if (previous[1] - previous[0] + 1 != chunkLength)
+				throw new IOException(chunkName(previous) + " has "
+						+ (previous[1] - previous[0] + 1) + " frames, "
+						+ "planned chunks have " + chunkLength);
+			if (previous[1] - chunk[0] + 1 != overlap)
+				throw new IOException(chunkName(chunk) + " shares "
+						+ (previous[1] - chunk[0] + 1) + " frames with "
+						+ "previous chunk, planned overlap is " + overlap);
+		}
+
+		int[] last = chunks.get(chunks.size() - 1);
+		int lastFrame = Tracker.NUMBER_OF_PHOTOS - 1;
+		if (last[1] - last[0] + 1 > chunkLength)
+			throw new IOException(chunkName(last) + " is longer than "
+					+ "planned chunks");
+		if (last[1] != lastFrame)
+			throw new IOException(last[1] < lastFrame ? "Frames "
+					+ (last[1] + 1) + " to " + lastFrame
+					+ " are not covered by any chunk" : chunkName(last)
+					+ " ends after the last frame " + lastFrame);
+
+		return chunks;
+	}
+
+	/**
+	 * <p>
+	 * Returns first and last frame of chunk whose tracks file has given name.
+	 * </p>
+	 */
+	private static int[] parseChunkName(String name) throws IOException
+	{
+		String[] parts = name.substring(0, name.length() - ".tracks".length())
+				.split("-");
+		int first, last;
+		try
+		{
+			if (parts.length != 3) throw new NumberFormatException();
+			first = Integer.parseInt(parts[1]);
+			last = Integer.parseInt(parts[2]);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Unexpected chunk file " + name
+					+ ", chunk files are named like "
+					+ String.format(CHUNK_NAME, 1, 20) + ".tracks");
+		}
+
+		if (first < 1 || first > last)
+			throw new IOException("Chunk file " + name
+					+ " names no valid range of frames");
+		return new int[] { first, last };
+	}
+
+	private static List<Track> readTracks(File directory, int[] chunk)
+			throws IOException
+	{
+		return TrackFile.read(new File(directory, chunkName(chunk)
+				+ ".tracks"));
+	}
+
+	private static String chunkName(int[] chunk)
+	{
+		return String.format(CHUNK_NAME, chunk[0], chunk[1]);
+	}
+
+	/**
+	 * <p>
+	 * Returns argument at given index, failing with its name if missing.
+	 * </p>
+	 */
+	private static String argument(String[] args, int index, String name)
+	{
+		if (index >= args.length)
+			throw new IllegalArgumentException("Missing argument: " + name);
+
+		return args[index];
+	}
+
+	private static int number(String[] args, int index, String name)
+	{
+		try
+		{
+			return Integer.parseInt(argument(args, index, name).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(name + " must be a whole "
+					+ "number, not \"" + args[index] + "\"");
+		}
+	}
+
+	/**
+	 * <p>
+	 * Returns warmup argument, which is either snapshot or number of frames.
+	 * </p>
+	 */
+	private static String parseWarmup(String[] args, int index)
+	{
+		String warmup = argument(args, index, "warmup");
+		if (warmup.equals(SNAPSHOT)) return warmup;
+
+		try
+		{
+			return String.valueOf(Integer.parseInt(warmup.trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("warmup must be " + SNAPSHOT
+					+ " or a whole number, not \"" + warmup + "\"");
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package tracking;
+
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Path of single object through the sequence. Track starts with rectangle
+ * detected on its first frame and holds rectangle the object was at on every
+ * following frame. Frames on which object was not found repeat its last known
+ * rectangle.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class Track
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private final int firstFrame;
+	private final int colorIndex;
+	private final List<ShapeRectangle> positions = new ArrayList<>();
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Creates track starting at given frame.
+	 * </p>
+	 * 
+	 * @param firstFrame
+	 * @param colorIndex
+	 * @param start
+	 */
+	public Track(int firstFrame, int colorIndex, ShapeRectangle start)
+	{
+		this.firstFrame = firstFrame;
+		this.colorIndex = colorIndex;
+		positions.add(start);
+	}
+
+	/**
+	 * <p>
+	 * Returns track made of this track up to given frame (inclusive) and other
+	 * track after it.
+	 * </p>
+	 * 
+	 * @param other
+	 * @param frame
+	 * @return
+	 */
+	public Track joinedWith(Track other, int frame)
+	{
+		Track result = new Track(firstFrame, colorIndex, positions.get(0));
+		for (int f = firstFrame + 1; f <= frame; f++)
+			result.add(getPosition(f));
+		for (int f = frame + 1; f <= other.getLastFrame(); f++)
+			result.add(other.getPosition(f));
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Returns first frame of the track.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getFirstFrame()
+	{
+		return firstFrame;
+	}
+
+	/**
+	 * <p>
+	 * Returns last frame of the track.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getLastFrame()
+	{
+		return firstFrame + positions.size() - 1;
+	}
+
+	/**
+	 * <p>
+	 * Returns index of color track is drawn with.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public int getColorIndex()
+	{
+		return colorIndex;
+	}
+
+	/**
+	 * <p>
+	 * Returns rectangle object was at on given frame or null, if track does
+	 * not cover that frame.
+	 * </p>
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	public ShapeRectangle getPosition(int frame)
+	{
+		if (frame < firstFrame || frame > getLastFrame()) return null;
+
+		return positions.get(frame - firstFrame);
+	}
+
+	/**
+	 * <p>
+	 * Returns centers of consecutive positions.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public List<Point> getPath()
+	{
+		List<Point> path = new ArrayList<>(positions.size());
+		for (ShapeRectangle r : positions)
+			path.add(new Point(r.centerX, r.centerY));
+
+		return path;
+	}
+
+	/**
+	 * <p>
+	 * Checks if both rectangles describe the same area.
+	 * </p>
+	 * 
+	 * @param r1
+	 * @param r2
+	 * @return
+	 */
+	public static boolean isSamePosition(ShapeRectangle r1, ShapeRectangle r2)
+	{
+		return r1 != null && r2 != null && r1.centerX == r2.centerX
+				&& r1.centerY == r2.centerY && r1.sideX == r2.sideX
+				&& r1.sideY == r2.sideY;
+	}
+
+	/**
+	 * <p>
+	 * Checks if other track covers the same frames at the same positions.
+	 * </p>
+	 * 
+	 * @param other
+	 * @return
+	 */
+	public boolean isSameAs(Track other)
+	{
+		if (firstFrame != other.firstFrame
+				|| getLastFrame() != other.getLastFrame()) return false;
+
+		for (int f = firstFrame; f <= getLastFrame(); f++)
+			if (!isSamePosition(getPosition(f), other.getPosition(f)))
+				return false;
+
+		return true;
+	}
+
+	void add(ShapeRectangle position)
+	{
+		positions.add(position);
+	}
+}
@@ -0,0 +1,155 @@
+package tracking;
+
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>
+ * Builds tracks frame after frame. Every live track moves to the nearest
+ * rectangle on the next frame, provided the rectangle is close enough compared
+ * to its size. Track that does not find its object for DEATH_TIME frames ends.
+ * Rectangles not taken by any track start new tracks.
+ * </p>
+ * <p>
+ * Frames must be given in order, but every frame is needed only once, so
+ * tracking can run while later frames are still being detected.
+ * </p>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class TrackAssociator
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int DEATH_TIME = 20;
+
+	private final int smallObject;
+	private final int colorCount;
+	private final List<Track> tracks = new ArrayList<>();
+	private final List<LiveTrack> liveTracks = new ArrayList<>();
+	private int frame;
+
+	/**
+	 * <p>
+	 * State of track that may still continue.
+	 * </p>
+	 */
+	private static final class LiveTrack
+	{
+		private final Track track;
+		private ShapeRectangle lastRectangle;
+		private int timesToDie = DEATH_TIME;
+
+		private LiveTrack(Track track, ShapeRectangle lastRectangle)
+		{
+			this.track = track;
+			this.lastRectangle = lastRectangle;
+		}
+	}
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Creates associator whose first frame has given number. Rectangles with
+	 * side smaller than smallObject are ignored.
+	 * </p>
+	 * 
+	 * @param firstFrame
+	 * @param smallObject
+	 * @param colorCount
+	 */
+	public TrackAssociator(int firstFrame, int smallObject, int colorCount)
+	{
+		this.frame = firstFrame;
+		this.smallObject = smallObject;
+		this.colorCount = colorCount;
+	}
+
+	/**
+	 * <p>
+	 * Associates rectangles detected on next frame with tracks.
+	 * </p>
+	 * 
+	 * @param rectangles
+	 */
+	public void advance(List<ShapeRectangle> rectangles)
+	{
+		boolean[] isUsed = new boolean[rectangles.size()];
+
+		Iterator<LiveTrack> it = liveTracks.iterator();
+		while (it.hasNext())
+		{
+			LiveTrack live = it.next();
+
+			/* Check all rectangles in new image */
+			double smallestDist = Double.MAX_VALUE;
+			int smallestIndex = -1;
+			for (int j = 0; j < rectangles.size(); j++)
+			{
+				ShapeRectangle r = rectangles.get(j);
+				if (r.sideX < smallObject || r.sideY < smallObject) continue;
+
+				double distance = distance(r, live.lastRectangle);
+				if (distance < smallestDist)
+				{
+					smallestIndex = j;
+					smallestDist = distance;
+				}
+			}
+
+			/* Check if closest rectangle is indeed this object */
+			if (smallestIndex >= 0
+					&& (int) smallestDist < rectangles.get(smallestIndex).sideX
+					&& (int) smallestDist < rectangles.get(smallestIndex).sideY)
+			{
+				live.timesToDie = DEATH_TIME;
+				live.lastRectangle = rectangles.get(smallestIndex);
+				isUsed[smallestIndex] = true;
+			}
+			else if ((--live.timesToDie) <= 0)
+			{
+				it.remove();
+				continue;
+			}
+
+			live.track.add(live.lastRectangle);
+		}
+
+		int started = 0;
+		for (int j = 0; j < rectangles.size(); j++)
+			if (!isUsed[j])
+			{
+				Track track = new Track(frame, (started++ + frame)
+						% colorCount, rectangles.get(j));
+				tracks.add(track);
+				liveTracks.add(new LiveTrack(track, rectangles.get(j)));
+			}
+
+		frame++;
+	}
+
+	/**
+	 * <p>
+	 * Returns all tracks, in order they were started.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public List<Track> getTracks()
+	{
+		return tracks;
+	}
+
+	private static double distance(ShapeRectangle r1, ShapeRectangle r2)
+	{
+		return Math.sqrt(Math.pow(r1.centerX - r2.centerX, 2)
+				+ Math.pow(r1.centerY - r2.centerY, 2));
+	}
+}
@@ -0,0 +1,133 @@
+package tracking;
+
+import imageutils.ImageEffect.ShapeRectangle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Reads and writes tracks in simple binary form:
+ * </p>
+ * 
+ * <pre>
+ * int magic | int count | count * (int first, int color, int length,
+ *                                  length * (int cx, cy, sx, sy))
+ * </pre>
+ * 
+ * @author Piotr Waszkiewicz
+ *
+ */
+public class TrackFile
+{
+	/***************/
+	/* VARIABLES */
+	/***************/
+	private static final int MAGIC = 0x4D545452;
+
+	/***************/
+	/* METHODS */
+	/***************/
+	/**
+	 * <p>
+	 * Writes tracks to file. Tracks are written to temporary file next to it
+	 * first, which is then renamed, so that file is never seen incomplete.
+	 * </p>
+	 * 
+	 * @param tracks
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(List<Track> tracks, File file) throws IOException
+	{
+		File temporary = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(tracks.size());
+			for (Track track : tracks)
+			{
+				out.writeInt(track.getFirstFrame());
+				out.writeInt(track.getColorIndex());
+				out.writeInt(track.getLastFrame() - track.getFirstFrame() + 1);
+				int last = track.getLastFrame();
+				for (int f = track.getFirstFrame(); f <= last; f++)
+				{
+					ShapeRectangle r = track.getPosition(f);
+					out.writeInt(r.centerX);
+					out.writeInt(r.centerY);
+					out.writeInt(r.sideX);
+					out.writeInt(r.sideY);
+				}
+			}
+		}
+
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * <p>
+	 * Reads tracks from file.
+	 * </p>
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Track> read(File file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file))))
+		{
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a track file");
+
+			int count = in.readInt();
+			List<Track> tracks = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+			{
+				int firstFrame = in.readInt();
+				int colorIndex = in.readInt();
+				int length = in.readInt();
+
+				Track track = new Track(firstFrame, colorIndex,
+						readRectangle(in));
+				for (int j = 1; j < length; j++)
+					track.add(readRectangle(in));
+				tracks.add(track);
+			}
+
+			return tracks;
+		}
+	}
+
+	private TrackFile()
+	{
+		// Only static methods are provided
+	}
+
+	private static ShapeRectangle readRectangle(DataInputStream in)
+			throws IOException
+	{
+		ShapeRectangle r = new ShapeRectangle();
+		r.centerX = in.readInt();
+		r.centerY = in.readInt();
+		r.sideX = in.readInt();
+		r.sideY = in.readInt();
+
+		return r;
+	}
+}
@@ -1,18 +1,32 @@
 package tracking;
 
+import image.FrameArena;
+import image.GrayscaleLoader;
 import image.Image;
+import imageutils.Contour;
+import imageutils.Histogram;
 import imageutils.ImageEffect;
+import imageutils.ImageEffect.MorphologyOperation;
 import imageutils.ImageEffect.ShapeRectangle;
+import imageutils.RunLengthMask;
 
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * <p>
@@ -27,21 +41,70 @@ public class Tracker
 	/***************/
 	/* VARIABLES */
 	/***************/
-	private static final int NUMBER_OF_PHOTOS = 571;
+	static final int NUMBER_OF_PHOTOS = Integer.getInteger("tracker.frames",
+			571);
 	private static final int BACKGROUND = 0;
 	private static final int SHAPE = 255;
 	private static final int TRESHOLD = 6;
-	private static final int SMALL_BACTERIA = 23;
+	/* Objects up to this side are dropped as noise */
+	public static final int SMALL_BACTERIA = 23;
+	static final int COMPUTE_THREADS = 9;
+	static final int IO_THREADS = 9;
+	private static final int READ_AHEAD = 64;
+	/* Frames handed to workers but not tracked yet */
+	private static final int REORDER_CAPACITY = 4 * COMPUTE_THREADS;
+	/* Path of recorded frames, with %d standing for frame number */
+	static final String INPUT_PATTERN = System.getProperty("tracker.input",
+			"./input/s08-24h-glass-DMEMbrak-pbs20min"
+					+ "_b0t%dc0x0-2048y0-2048.png");
+	private static final boolean RUN_LENGTH_MASKS = Boolean
+			.parseBoolean(System.getProperty("tracker.rle", "true"));
+	/* One of: fixed, otsu, triangle; adaptive ones never go below TRESHOLD */
+	private static final String TRESHOLD_METHOD = System.getProperty(
+			"tracker.treshold", "fixed");
+	/* Positive radius replaces openings and closings with median filtering */
+	private static final int MEDIAN_RADIUS = Integer.getInteger(
+			"tracker.median", 0);
+	/* Empty path turns caching of detected rectangles off */
+	private static final String CACHE_PATH = System.getProperty(
+			"tracker.cache", "./output/detections.cache");
+	private static final boolean OFF_HEAP_FRAMES = Boolean
+			.getBoolean("tracker.offheap");
+	/* Directory watched for frames in live mode, null for recorded input */
+	private static final String WATCHED_DIRECTORY = System
+			.getProperty("tracker.watch");
+	private static final RateControl RATE_CONTROL = RateControl
+			.fromProperty("tracker.rate", RateControl.DROP);
+	private static final int MAX_BACKLOG = Integer.getInteger(
+			"tracker.backlog", 8);
+	private static final long MAX_LATENCY_MILLIS = Long.getLong(
+			"tracker.latency", 2000);
+	private static final int REDUCTION_FACTOR = Integer.getInteger(
+			"tracker.reduction", 2);
+	private static final long IDLE_TIMEOUT_MILLIS = Long.getLong(
+			"tracker.idle", 30000);
+	/* Frames are read as gray levels if any of these three is set */
+	private static final boolean GRAY_FRAMES = Boolean
+			.getBoolean("tracker.gray");
+	/* Region of frames to track, as x,y,width,height, null for whole frames */
+	private static final Rectangle REGION = parseRegion(System
+			.getProperty("tracker.region"));
+	private static final int SUBSAMPLING = Integer.getInteger(
+			"tracker.subsampling", 1);
+	static final ExecutionMode EXECUTION_MODE = ExecutionMode
+			.fromProperty("tracker.execution", ExecutionMode.FIXED_POOL);
 
-	private static List<List<ShapeRectangle>> rectanglesInSequence;
 	private static List<Image> imagesInSequence;
+	private static FrameArena frameArena;
 	private static Color[] colors = { Color.BLUE, Color.CYAN, Color.GREEN,
 			Color.MAGENTA, Color.ORANGE, Color.PINK, Color.RED, Color.WHITE,
 			Color.YELLOW };
 
 	/**
 	 * <p>
-	 * Class responsible for parallel computations.
+	 * Class responsible for parallel computations. Publishes rectangles it
+	 * detects to reorder buffer, from which they are tracked in order. Live
+	 * frames are completed in their source just before that.
 	 * </p>
 	 * 
 	 * @author Piotr Waszkiewicz
@@ -49,127 +112,256 @@ public class Tracker
 	 */
 	private static class Worker implements Runnable
 	{
-		private Image result;
+		private Image differences;
+		private int treshold;
 		private int number;
+		private long key;
+		private int scale;
+		private ReorderBuffer<List<ShapeRectangle>> results;
+		private DetectionCache cache;
+		private LiveFrameSource source;
 
-		private Worker(Image result, int number)
+		private Worker(Image differences, int treshold, int number, long key,
+				int scale, ReorderBuffer<List<ShapeRectangle>> results,
+				DetectionCache cache, LiveFrameSource source)
 		{
-			this.result = result;
+			this.differences = differences;
+			this.treshold = treshold;
 			this.number = number;
+			this.key = key;
+			this.scale = scale;
+			this.results = results;
+			this.cache = cache;
+			this.source = source;
 		}
 
 		@Override
 		public void run()
 		{
-			result = makeOpeningsAndClosings(result);
-			result = ImageEffect.makeBorders(result, 255, 0, 3, new Color(255,
-					0, 0).getRGB());
-			List<ShapeRectangle> rectangleList = ImageEffect.getObjectAreas(
-					result, new Color(255, 0, 0).getRGB(),
-					new Color(0, 0, 0).getRGB());
+			try
+			{
+				List<ShapeRectangle> detected = detect();
+				if (source != null) source.complete(number);
+				results.publish(number, detected);
+			}
+			catch (RuntimeException | Error e)
+			{
+				results.fail(e);
+				throw e;
+			}
+
+			System.out.println("Image " + number + " processed");
+		}
+
+		private List<ShapeRectangle> detect()
+		{
+			List<ShapeRectangle> rectangleList = new ArrayList<>();
+			if (RUN_LENGTH_MASKS && MEDIAN_RADIUS == 0)
+				rectangleList = makeOpeningsAndClosings(
+						ImageEffect.binarizeToRunLengthMask(differences,
+								treshold)).getObjectAreas();
+			else
+			{
+				Image result = ImageEffect.binarizeImage(differences,
+						treshold, BACKGROUND, SHAPE);
+				if (MEDIAN_RADIUS > 0)
+					result = ImageEffect.majorityFilter(result, SHAPE,
+							BACKGROUND, MEDIAN_RADIUS);
+				else
+					result = makeOpeningsAndClosings(result);
+				for (Contour c : ImageEffect.getObjectContours(result, SHAPE))
+					rectangleList.add(c.toShapeRectangle());
+			}
 
+			List<ShapeRectangle> detected = new ArrayList<>();
 			for (ShapeRectangle r : rectangleList)
+			{
+				/* Frames decoded at reduced resolution are scaled back */
+				r.centerX *= scale;
+				r.centerY *= scale;
+				r.sideX *= scale;
+				r.sideY *= scale;
 				if (r.sideX > SMALL_BACTERIA && r.sideY > SMALL_BACTERIA)
-					rectanglesInSequence.get(number - 1).add(r);
+					detected.add(r);
+			}
 
-			System.out.println("Image " + number + " out of 570");
+			if (cache != null) try
+			{
+				cache.put(number, key, detected);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+
+			return Collections.unmodifiableList(detected);
 		}
 	}
 
-	private static class BacteriaSpy implements Runnable
+	/**
+	 * <p>
+	 * Task decoding single frame from disk.
+	 * </p>
+	 * 
+	 * @author Piotr Waszkiewicz
+	 *
+	 */
+	private static class FrameReader implements Callable<Image>
 	{
-		private static final int DEATH_TIME = 20;
-		private ShapeRectangle lastRectangle;
-		private List<Point> pointsInPath;
-		private int timesToDie = DEATH_TIME;
-		private Color myColor;
-		private int startingImage;
-
-		public BacteriaSpy(ShapeRectangle bacteria, Color color, int startIndex)
+		private String path;
+
+		private FrameReader(String path)
 		{
-			lastRectangle = bacteria;
-			myColor = color;
-			startingImage = startIndex;
-			pointsInPath = new ArrayList<>();
+			this.path = path;
 		}
 
 		@Override
-		public void run()
+		public Image call() throws IOException
 		{
-			/* For every frame */
-			for (int i = startingImage; i < rectanglesInSequence.size(); i++)
-			{
-				/* Save last position */
-				pointsInPath.add(new Point(lastRectangle.centerX,
-						lastRectangle.centerY));
-				lastRectangle.hasRectangleBeenUsed = true;
-
-				/* Check all rectangles in new image */
-				double smallestDist = Double.MAX_VALUE;
-				int j = -1, smallestIndex = 0;
-				for (ShapeRectangle r : rectanglesInSequence.get(i))
-				{
-					j++;
-					if (r.sideX < SMALL_BACTERIA || r.sideY < SMALL_BACTERIA)
-						continue;
-
-					double distance = distanceTo(r.centerX, r.centerY,
-							lastRectangle.centerX, lastRectangle.centerY);
-					if (distance < smallestDist)
-					{
-						smallestIndex = j;
-						smallestDist = distance;
-					}
-				}
-
-				/* Check if smallest rectangle is indeed yours */
-				ShapeRectangle probableNextPosition = rectanglesInSequence.get(
-						i).get(smallestIndex);
-				double distance = distanceTo(probableNextPosition.centerX,
-						probableNextPosition.centerY, lastRectangle.centerX,
-						lastRectangle.centerY);
-				if ((int) distance < probableNextPosition.sideX
-						&& (int) distance < probableNextPosition.sideY)
-				{
-					timesToDie = DEATH_TIME;
-					lastRectangle = probableNextPosition;
-				}
-				else if ((--timesToDie) <= 0) break;
-
-				/* Paint rectangle */
-				drawMyRectangle(imagesInSequence.get(i));
-			}
+			return readFrame(path);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Task encoding single frame to disk.
+	 * </p>
+	 * 
+	 * @author Piotr Waszkiewicz
+	 *
+	 */
+	private static class FrameWriter implements Callable<Void>
+	{
+		private Image image;
+		private String path;
+
+		private FrameWriter(Image image, String path)
+		{
+			this.image = image;
+			this.path = path;
+		}
+
+		@Override
+		public Void call() throws IOException
+		{
+			image.save(path);
+			return null;
+		}
+	}
 
-			if (pointsInPath.size() > 0) drawMyPath();
+	/**
+	 * <p>
+	 * Tracks live frames as they are detected, draws tracks on every frame
+	 * as soon as it is tracked and saves it. Only frames not tracked yet and
+	 * the last tracked frame, on which paths are drawn at the end, are kept.
+	 * </p>
+	 * 
+	 * @author Piotr Waszkiewicz
+	 *
+	 */
+	private static class LiveResults
+	{
+		private PipelineExecutors executors;
+		private ReorderBuffer<List<ShapeRectangle>> detections;
+		private TrackAssociator associator;
+		private Deque<Image> untrackedFrames = new ArrayDeque<>();
+		private Deque<Future<Void>> savedFrames = new ArrayDeque<>();
+		private Image lastFrame;
+		private int lastNumber = 0;
+
+		private LiveResults(PipelineExecutors executors,
+				ReorderBuffer<List<ShapeRectangle>> detections)
+		{
+			this.executors = executors;
+			this.detections = detections;
+			this.associator = new TrackAssociator(1, SMALL_BACTERIA,
+					colors.length);
 		}
 
-		private void drawMyRectangle(Image image)
+		/**
+		 * <p>
+		 * Keeps frame tracks will be drawn on, until it is tracked.
+		 * </p>
+		 */
+		private void add(Image frame)
 		{
-			Graphics g = image.getGraphics();
-			g.setColor(myColor);
-			g.drawRect(lastRectangle.centerX - lastRectangle.sideX / 2,
-					lastRectangle.centerY - lastRectangle.sideY / 2,
-					lastRectangle.sideX, lastRectangle.sideY);
-			g.dispose();
+			untrackedFrames.add(frame);
 		}
 
-		private void drawMyPath()
+		/**
+		 * <p>
+		 * Tracks frames already detected, in order, waiting for the oldest
+		 * ones while buffer has no room for frame of given number.
+		 * </p>
+		 */
+		private void trackDetectedFrames(int number)
+				throws InterruptedException, ExecutionException
 		{
-			Graphics g = imagesInSequence.get(imagesInSequence.size() - 1)
-					.getGraphics();
-			g.setColor(myColor);
-			Point p1 = pointsInPath.get(0);
-			for (int i = 1; i < pointsInPath.size(); i++)
+			while (!detections.hasRoomFor(number))
+				track(detections.take());
+
+			List<ShapeRectangle> detected;
+			while ((detected = detections.poll()) != null)
+				track(detected);
+		}
+
+		/**
+		 * <p>
+		 * Tracks all remaining frames, draws paths and waits until all frames
+		 * are saved.
+		 * </p>
+		 */
+		private void finish() throws InterruptedException,
+				ExecutionException
+		{
+			while (!untrackedFrames.isEmpty())
+				track(detections.take());
+
+			if (lastFrame != null)
 			{
-				Point p2 = pointsInPath.get(i);
-				g.drawLine(p1.x, p1.y, p2.x, p2.y);
-				p1 = p2;
+				for (Track track : associator.getTracks())
+					drawPath(lastFrame, track);
+				save(lastFrame, lastNumber);
+				lastFrame = null;
 			}
+
+			while (!savedFrames.isEmpty())
+				savedFrames.poll().get();
 		}
 
-		private double distanceTo(int x1, int y1, int x2, int y2)
+		private void track(List<ShapeRectangle> detected)
+				throws InterruptedException, ExecutionException
 		{
-			return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+			associator.advance(detected);
+			Image frame = untrackedFrames.poll();
+			int number = lastNumber + 1;
+
+			/* Tracks still alive on this frame end on it */
+			for (Track track : associator.getTracks())
+				if (track.getLastFrame() == number)
+					drawPosition(frame, track, number);
+
+			if (lastFrame != null) save(lastFrame, lastNumber);
+			lastFrame = frame;
+			lastNumber = number;
+		}
+
+		/**
+		 * <p>
+		 * Saves frame named as recorded results are, waiting for the oldest
+		 * save if too many are in progress.
+		 * </p>
+		 */
+		private void save(Image frame, int number)
+				throws InterruptedException, ExecutionException
+		{
+			if (number < 2) return;
+
+			while (savedFrames.size() >= IO_THREADS)
+				savedFrames.poll().get();
+			savedFrames.add(executors.getIOExecutor().submit(
+					new FrameWriter(frame, "./output/result" + (number - 1)
+							+ ".png")));
 		}
 	}
 
@@ -186,92 +378,524 @@ public class Tracker
 	 */
 	public static void main(String[] args)
 	{
+		if (WATCHED_DIRECTORY != null)
+		{
+			trackLive(new File(WATCHED_DIRECTORY));
+			return;
+		}
+
+		PipelineExecutors executors = new PipelineExecutors(EXECUTION_MODE,
+				COMPUTE_THREADS, IO_THREADS);
 		try
 		{
-			rectanglesInSequence = new ArrayList<>(NUMBER_OF_PHOTOS - 1);
 			imagesInSequence = new ArrayList<>(NUMBER_OF_PHOTOS - 1);
-			ExecutorService executor = Executors.newFixedThreadPool(9);
 			long startTime = System.nanoTime();
-			Image background = new Image(
-					"./input/s08-24h-glass-DMEMbrak-pbs20min_b0t" + 0
-							+ "c0x0-2048y0-2048.png");
+			long[] frameKeys = getFrameKeys();
+			DetectionCache cache = null;
+			if (!CACHE_PATH.isEmpty())
+				cache = new DetectionCache(new File(CACHE_PATH),
+						getParametersKey());
 
-			for (int i = 1; i < NUMBER_OF_PHOTOS; i++)
-			{
-				Image frame = new Image(
-						"./input/s08-24h-glass-DMEMbrak-pbs20min_b0t" + i
-								+ "c0x0-2048y0-2048.png");
-				imagesInSequence.add(frame.getCopy());
-
-				Image result = getBinarizedDifferences(background, frame);
-				background = ImageEffect.moveTowards(background, frame, 1);
-				rectanglesInSequence.add(new ArrayList<>());
-				executor.execute(new Worker(result, i));
-			}
-			executor.shutdown();
-			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-			runRectangleColorizations();
+			List<Track> tracks = trackFrames(executors, 1,
+					NUMBER_OF_PHOTOS - 1, 0, null, frameKeys, cache,
+					imagesInSequence);
+			if (cache != null) cache.close();
+
+			drawTracks(tracks);
+			saveResults(executors);
+			if (frameArena != null) frameArena.close();
 
 			long endTime = System.nanoTime();
 			long duration = (endTime - startTime) / 1000000;
 			System.out.println("It took me " + duration / 1000 + " seconds");
 			Thread.sleep(20 * 1000);
 		}
-		catch (IOException | InterruptedException e)
+		catch (IOException | InterruptedException | ExecutionException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			shutdown(executors);
+		}
 	}
 
-	private static void runRectangleColorizations()
+	/**
+	 * <p>
+	 * Detects and tracks objects on the whole recorded sequence, without
+	 * caching detections and without drawing anything.
+	 * </p>
+	 * 
+	 * @param executors
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static List<Track> trackRecordedFrames(PipelineExecutors executors)
+			throws IOException, InterruptedException, ExecutionException
+	{
+		return trackFrames(executors, 1, NUMBER_OF_PHOTOS - 1, 0, null,
+				getFrameKeys(), null, null);
+	}
+
+	/**
+	 * <p>
+	 * Detects and tracks objects on frames from first to last (inclusive) of
+	 * recorded sequence. Background is built starting from frame warmupStart,
+	 * frames between it and the first one are used only to update background.
+	 * If initialBackground is not null, it is background as it is before the
+	 * first frame, and warmupStart is ignored. Frames found in cache are not
+	 * detected again. If keptFrames is not null, copies of processed frames
+	 * are added to it.
+	 * </p>
+	 * <p>
+	 * Frames are tracked as soon as they and all frames before them are
+	 * detected, while later frames are still being detected.
+	 * </p>
+	 */
+	static List<Track> trackFrames(PipelineExecutors executors, int first,
+			int last, int warmupStart, Image initialBackground,
+			long[] frameKeys, DetectionCache cache, List<Image> keptFrames)
+			throws IOException, InterruptedException, ExecutionException
 	{
-		for (int i = 0; i < rectanglesInSequence.size(); i++)
+		ReorderBuffer<List<ShapeRectangle>> detections = new ReorderBuffer<>(
+				first, REORDER_CAPACITY);
+		TrackAssociator associator = new TrackAssociator(first,
+				SMALL_BACTERIA, colors.length);
+
+		/* Given background already holds all frames before the first one */
+		int backgroundStart = initialBackground != null ? first - 1
+				: warmupStart;
+		/* Background is needed only up to the last frame not cached */
+		int lastToDetect = backgroundStart;
+		for (int i = first; i <= last; i++)
+			if (cache == null || !cache.contains(i, frameKeys[i]))
+				lastToDetect = i;
+		Image background = initialBackground;
+		if (background == null && lastToDetect > backgroundStart)
+			background = getBackgroundFrame(readFrame(String.format(
+					INPUT_PATTERN, backgroundStart)));
+		int firstToRead = lastToDetect > backgroundStart ? backgroundStart + 1
+				: first;
+
+		/* Frames are decoded ahead of time, but consumed in order */
+		Deque<Future<Image>> pendingFrames = new ArrayDeque<>();
+		int nextToRead = firstToRead;
+		for (int i = firstToRead; i <= last; i++)
 		{
-			int num = 0;
-			Thread[] threads = new Thread[rectanglesInSequence.get(i).size()];
+			while (nextToRead <= last && nextToRead < i + READ_AHEAD)
+				pendingFrames.add(executors.getIOExecutor().submit(
+						new FrameReader(String.format(INPUT_PATTERN,
+								nextToRead++))));
 
-			for (ShapeRectangle r : rectanglesInSequence.get(i))
+			Image frame = pendingFrames.poll().get();
+			if (i < first)
 			{
-				if (r.hasRectangleBeenUsed) continue;
-				threads[num] = new Thread(new BacteriaSpy(r, colors[(num + i)
-						% colors.length], i + 1));
-				threads[num].start();
-				num++;
+				background = ImageEffect.moveTowards(background,
+						getBackgroundFrame(frame), 1);
+				continue;
 			}
 
-			for (int j = 0; j < num; j++)
-				try
-				{
-					threads[j].join();
-				}
-				catch (InterruptedException e)
-				{
-					e.printStackTrace();
-				}
+			if (keptFrames != null)
+				keptFrames.add(keepFrame(frame, last - first + 1));
+
+			trackDetectedFrames(detections, associator, i);
+			List<ShapeRectangle> cached = null;
+			if (cache != null) cached = cache.get(i, frameKeys[i]);
+			if (cached != null)
+			{
+				detections.publish(i, Collections.unmodifiableList(cached));
+				if (i < lastToDetect)
+					background = ImageEffect.moveTowards(background,
+							getBackgroundFrame(frame), 1);
+				continue;
+			}
+
+			background = submitDetection(executors, background, frame, i,
+					frameKeys[i], SUBSAMPLING, detections, cache, null);
+		}
+
+		while (detections.getNext() <= last)
+			associator.advance(detections.take());
+
+		return associator.getTracks();
+	}
+
+	/**
+	 * <p>
+	 * Builds background from the first frame of recorded sequence on, as
+	 * {@link #trackFrames} does, but detects nothing. Background as it is
+	 * before each of given frames, which must be ascending and greater than 1,
+	 * is saved to file named by pattern. Files appear complete or not at all.
+	 * </p>
+	 */
+	static void saveBackgrounds(PipelineExecutors executors, int[] frames,
+			String pattern) throws IOException, InterruptedException,
+			ExecutionException
+	{
+		for (int k = 0; k < frames.length; k++)
+			if (frames[k] < 2 || k > 0 && frames[k] <= frames[k - 1])
+				throw new IllegalArgumentException(
+						"Frames must be ascending and greater than 1!");
+		if (frames.length == 0) return;
+
+		int last = frames[frames.length - 1] - 1;
+		Image background = getBackgroundFrame(readFrame(String.format(
+				INPUT_PATTERN, 0)));
+		Deque<Future<Image>> pendingFrames = new ArrayDeque<>();
+		int nextToRead = 1, nextToSave = 0;
+		for (int i = 1; i <= last; i++)
+		{
+			while (nextToRead <= last && nextToRead < i + READ_AHEAD)
+				pendingFrames.add(executors.getIOExecutor().submit(
+						new FrameReader(String.format(INPUT_PATTERN,
+								nextToRead++))));
+
+			background = ImageEffect.moveTowards(background,
+					getBackgroundFrame(pendingFrames.poll().get()), 1);
+			if (frames[nextToSave] == i + 1)
+			{
+				String path = String.format(pattern, frames[nextToSave++]);
+				background.save(path + ".tmp");
+				Files.move(Paths.get(path + ".tmp"), Paths.get(path),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
 		}
+	}
 
+	/**
+	 * <p>
+	 * Tracks frames already detected, in order, waiting for the oldest ones
+	 * while buffer has no room for frame of given number.
+	 * </p>
+	 */
+	private static void trackDetectedFrames(
+			ReorderBuffer<List<ShapeRectangle>> detections,
+			TrackAssociator associator, int number)
+			throws InterruptedException, ExecutionException
+	{
+		while (!detections.hasRoomFor(number))
+			associator.advance(detections.take());
+
+		List<ShapeRectangle> detected;
+		while ((detected = detections.poll()) != null)
+			associator.advance(detected);
+	}
+
+	/**
+	 * <p>
+	 * Returns tracks found in rectangles detected on consecutive frames,
+	 * starting with frame of given number.
+	 * </p>
+	 */
+	static List<Track> buildTracks(List<List<ShapeRectangle>> rectangles,
+			int firstFrame)
+	{
+		TrackAssociator associator = new TrackAssociator(firstFrame,
+				SMALL_BACTERIA, colors.length);
+		for (List<ShapeRectangle> frameRectangles : rectangles)
+			associator.advance(frameRectangles);
+
+		return associator.getTracks();
+	}
+
+	/**
+	 * <p>
+	 * Returns keys identifying input of every frame. Key of a frame covers all
+	 * frames before it, as they all shape the background.
+	 * </p>
+	 */
+	static long[] getFrameKeys()
+	{
+		long[] keys = new long[NUMBER_OF_PHOTOS];
+		keys[0] = DetectionCache.identityOf(new File(String.format(
+				INPUT_PATTERN, 0)));
+		for (int i = 1; i < NUMBER_OF_PHOTOS; i++)
+			keys[i] = DetectionCache.chain(keys[i - 1], DetectionCache
+					.identityOf(new File(String.format(INPUT_PATTERN, i))));
+
+		return keys;
+	}
+
+	static long getParametersKey()
+	{
+		/* Background is built from filtered frames when filtering is on */
+		String median = MEDIAN_RADIUS > 0 ? MEDIAN_RADIUS + "/background"
+				: String.valueOf(MEDIAN_RADIUS);
+		return DetectionCache.keyOf(BACKGROUND, SHAPE, TRESHOLD,
+				TRESHOLD_METHOD, SMALL_BACTERIA, median,
+				RUN_LENGTH_MASKS, GRAY_FRAMES, REGION, SUBSAMPLING);
+	}
+
+	/**
+	 * <p>
+	 * Tracks frames written to given directory while tracking runs. Frames
+	 * are saved with tracks drawn as soon as they are tracked. Ends when no
+	 * new frame appears for idle timeout.
+	 * </p>
+	 * 
+	 * @param directory
+	 */
+	private static void trackLive(File directory)
+	{
+		ReorderBuffer<List<ShapeRectangle>> detections = new ReorderBuffer<>(
+				1, REORDER_CAPACITY);
+		PipelineExecutors executors = new PipelineExecutors(EXECUTION_MODE,
+				COMPUTE_THREADS, IO_THREADS);
+		LiveResults results = new LiveResults(executors, detections);
+
+		try (LiveFrameSource source = new LiveFrameSource(directory, ".png",
+				RATE_CONTROL, MAX_BACKLOG, MAX_LATENCY_MILLIS,
+				REDUCTION_FACTOR, IDLE_TIMEOUT_MILLIS))
+		{
+			LiveFrameSource.Frame first = source.next();
+			if (first == null) return;
+			int width = first.image.getWidth() * first.scale;
+			int height = first.image.getHeight() * first.scale;
+			Image background = getBackgroundFrame(ImageEffect.resize(
+					first.image, width, height));
+			source.complete(first.number);
+
+			LiveFrameSource.Frame frame;
+			int number = 0;
+			while ((frame = source.next()) != null)
+			{
+				Image image = frame.image;
+				results.add(frame.scale == 1 ? image.getCopy() : ImageEffect
+						.resize(image, width, height));
+
+				/* Background follows resolution frames are processed at */
+				if (background.getWidth() != image.getWidth())
+					background = ImageEffect.resize(background,
+							image.getWidth(), image.getHeight());
+				results.trackDetectedFrames(frame.number);
+				background = submitDetection(executors, background, image,
+						frame.number, 0, frame.scale, detections, null,
+						source);
+				number = frame.number;
+			}
+
+			results.finish();
+			System.out.println("Processed " + number + " frames, dropped "
+					+ source.getDroppedFrames() + ", unreadable "
+					+ source.getUnreadableFrames() + ", published late "
+					+ source.getLateFrames() + ", worst latency "
+					+ source.getWorstLatencyMillis() + " ms");
+		}
+		catch (IOException | InterruptedException | ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			shutdown(executors);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Shuts executors down, waiting for tasks already submitted. Called on
+	 * every way out, since their threads would keep program running.
+	 * </p>
+	 */
+	private static void shutdown(PipelineExecutors executors)
+	{
+		try
+		{
+			executors.shutdownAndWait();
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Computes differences between frame and background, hands them to worker
+	 * and returns background updated with the frame. Frame is filtered once,
+	 * for both.
+	 * </p>
+	 */
+	private static Image submitDetection(PipelineExecutors executors,
+			Image background, Image frame, int number, long key, int scale,
+			ReorderBuffer<List<ShapeRectangle>> detections,
+			DetectionCache cache, LiveFrameSource source)
+	{
+		Histogram histogram = new Histogram();
+		Image grayFrame = getGrayFrame(frame);
+		Image differences = ImageEffect.subtractImages(
+				ImageEffect.getGrayscale(background), grayFrame, histogram);
+		executors.getComputeExecutor().execute(
+				new Worker(differences, selectTreshold(histogram), number,
+						key, scale, detections, cache, source));
+
+		return ImageEffect.moveTowards(background,
+				MEDIAN_RADIUS > 0 ? grayFrame : frame, 1);
+	}
+
+	/**
+	 * <p>
+	 * Draws tracks on frames. Frame number n is image n - 1 of the sequence,
+	 * paths of all tracks are drawn on the last image.
+	 * </p>
+	 */
+	private static void drawTracks(List<Track> tracks)
+	{
+		Image lastImage = imagesInSequence.get(imagesInSequence.size() - 1);
+
+		for (Track track : tracks)
+		{
+			for (int f = track.getFirstFrame(); f <= track.getLastFrame(); f++)
+				drawPosition(imagesInSequence.get(f - 1), track, f);
+			drawPath(lastImage, track);
+		}
+	}
+
+	private static void drawPosition(Image image, Track track, int frame)
+	{
+		ShapeRectangle r = track.getPosition(frame);
+		Graphics g = image.getGraphics();
+		g.setColor(colors[track.getColorIndex()]);
+		g.drawRect(r.centerX - r.sideX / 2, r.centerY - r.sideY / 2, r.sideX,
+				r.sideY);
+		g.dispose();
+	}
+
+	private static void drawPath(Image image, Track track)
+	{
+		Graphics g = image.getGraphics();
+		g.setColor(colors[track.getColorIndex()]);
+		List<Point> path = track.getPath();
+		Point p1 = path.get(0);
+		for (int i = 1; i < path.size(); i++)
+		{
+			Point p2 = path.get(i);
+			g.drawLine(p1.x, p1.y, p2.x, p2.y);
+			p1 = p2;
+		}
+		g.dispose();
+	}
+
+	private static void saveResults(PipelineExecutors executors)
+	{
+		List<Future<?>> savedImages = new ArrayList<>();
 		for (int i = 1; i < imagesInSequence.size(); i++)
+			savedImages.add(executors.getIOExecutor().submit(
+					new FrameWriter(imagesInSequence.get(i),
+							"./output/result" + i + ".png")));
+
+		for (Future<?> saved : savedImages)
 			try
 			{
-				imagesInSequence.get(i).save("./output/result" + i + ".png");
+				saved.get();
 			}
-			catch (IOException e)
+			catch (InterruptedException | ExecutionException e)
 			{
 				e.printStackTrace();
 			}
 	}
 
-	private static Image getBinarizedDifferences(Image background, Image frame)
+	private static Image readFrame(String path) throws IOException
+	{
+		if (GRAY_FRAMES || REGION != null || SUBSAMPLING > 1)
+			return GrayscaleLoader.read(path, REGION, SUBSAMPLING);
+
+		return new Image(path);
+	}
+
+	/**
+	 * <p>
+	 * Returns copy of frame tracks can be drawn on, at resolution detected
+	 * rectangles refer to.
+	 * </p>
+	 */
+	private static Image keepFrame(Image frame, int frameCount)
+	{
+		Image kept = frame;
+		if (SUBSAMPLING > 1)
+			kept = ImageEffect.resize(frame, frame.getWidth() * SUBSAMPLING,
+					frame.getHeight() * SUBSAMPLING);
+
+		if (OFF_HEAP_FRAMES && frameArena == null)
+			frameArena = new FrameArena(kept.getWidth(), kept.getHeight(),
+					frameCount);
+		if (frameArena != null) return frameArena.copyOf(kept);
+		if (kept != frame) return kept;
+
+		if (!frame.isGrayscale()) return frame.getCopy();
+		Image colored = new Image(frame.getWidth(), frame.getHeight());
+		colored.setPixels(frame.getPixels());
+		return colored;
+	}
+
+	private static Rectangle parseRegion(String region)
+	{
+		if (region == null || region.isEmpty()) return null;
+
+		String[] values = region.split(",");
+		if (values.length != 4)
+			throw new IllegalArgumentException(
+					"Region must be given as x,y,width,height");
+
+		Rectangle result = new Rectangle(Integer.parseInt(values[0].trim()),
+				Integer.parseInt(values[1].trim()), Integer.parseInt(values[2]
+						.trim()), Integer.parseInt(values[3].trim()));
+		if (result.width <= 0 || result.height <= 0)
+			throw new IllegalArgumentException("Dimensions must be positive!");
+
+		return result;
+	}
+
+	private static Image getGrayFrame(Image frame)
+	{
+		Image grayFrame = ImageEffect.getGrayscale(frame);
+		if (MEDIAN_RADIUS > 0)
+			grayFrame = ImageEffect.medianFilter(grayFrame, MEDIAN_RADIUS);
+
+		return grayFrame;
+	}
+
+	/**
+	 * <p>
+	 * Returns frame as background learns it. Filtered frames are compared
+	 * with background, so it is built from filtered frames as well, otherwise
+	 * texture the filter smooths would show as differences.
+	 * </p>
+	 */
+	private static Image getBackgroundFrame(Image frame)
 	{
-		return ImageEffect.binarizeImage(ImageEffect.subtractImages(
-				ImageEffect.getGrayscale(background),
-				ImageEffect.getGrayscale(frame)), TRESHOLD, BACKGROUND, SHAPE);
+		return MEDIAN_RADIUS > 0 ? getGrayFrame(frame) : frame;
+	}
+
+	private static int selectTreshold(Histogram histogram)
+	{
+		switch (TRESHOLD_METHOD)
+		{
+			case "otsu":
+				return Math.max(TRESHOLD, histogram.getOtsuTreshold());
+			case "triangle":
+				return Math.max(TRESHOLD, histogram.getTriangleTreshold());
+			case "fixed":
+				return TRESHOLD;
+			default:
+				throw new IllegalArgumentException("Unknown treshold method: "
+						+ TRESHOLD_METHOD);
+		}
 	}
 
 	private static Image makeOpeningsAndClosings(Image image)
 	{
-		image = ImageEffect.dilatation(image, 255, 0, 5);
-		image = ImageEffect.erosion(image, 255, 0, 7);
-		return ImageEffect.dilatation(image, 255, 0, 3);
+		return ImageEffect.morphology(image, 255, 0,
+				MorphologyOperation.dilatation(5),
+				MorphologyOperation.erosion(7),
+				MorphologyOperation.dilatation(3));
+	}
+
+	private static RunLengthMask makeOpeningsAndClosings(RunLengthMask mask)
+	{
+		return mask.dilatation(5).erosion(7).dilatation(3);
 	}
 }